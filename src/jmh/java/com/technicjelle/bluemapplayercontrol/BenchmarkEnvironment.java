@@ -0,0 +1,258 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import com.technicjelle.bluemapplayercontrol.commands.BMPC;
+import com.technicjelle.bluemapplayercontrol.commands.TabCompletionIndex;
+import de.bluecolored.bluemap.api.BlueMapAPI;
+import de.bluecolored.bluemap.api.WebApp;
+import org.bukkit.Bukkit;
+import org.bukkit.GameMode;
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-process stand-ins for the Bukkit server, its players and BlueMap, so the benchmarks run without a server.
+ * <p>
+ * Bukkit and BlueMap interfaces are implemented with {@link Proxy}s that only answer the calls the plugin makes.
+ * The plugin class itself and the abstract {@link BlueMapAPI} are mocked, because they can't be constructed outside a server.
+ */
+public final class BenchmarkEnvironment {
+	private static final Logger LOGGER = Logger.getLogger("BlueMapPlayerControl");
+	private static final List<Player> ONLINE_PLAYERS = new ArrayList<>();
+	private static final Set<UUID> HIDDEN_PLAYERS = ConcurrentHashMap.newKeySet();
+	/** Entities other than players, which only the stand-in for the vanilla selector looks at */
+	private static final List<Entity> LOADED_ENTITIES = new ArrayList<>();
+	private static final World WORLD = proxy(World.class, (proxy, method, args) -> switch (method.getName()) {
+		case "getName" -> "world";
+		case "equals" -> proxy == args[0];
+		case "hashCode" -> System.identityHashCode(proxy);
+		default -> defaultValue(method);
+	});
+	private static final WebApp WEB_APP = proxy(WebApp.class, (proxy, method, args) -> switch (method.getName()) {
+		case "setPlayerVisibility" -> {
+			if ((boolean) args[1]) HIDDEN_PLAYERS.remove((UUID) args[0]);
+			else HIDDEN_PLAYERS.add((UUID) args[0]);
+			yield null;
+		}
+		case "getPlayerVisibility" -> !HIDDEN_PLAYERS.contains((UUID) args[0]);
+		default -> defaultValue(method);
+	});
+
+	private static boolean initialised;
+
+	public final BlueMapPlayerControl plugin;
+	public final ConfigManager configManager;
+	public final VisibilityManager visibilityManager;
+	public final BMPC executor;
+	/** A player with every permission, who is not in the online player list */
+	public final Player admin;
+
+	/**
+	 * Set up the stubs with a number of online players, named <code>Player0</code> to <code>Player[n-1]</code>
+	 * @param onlinePlayers The number of online players
+	 */
+	public BenchmarkEnvironment(int onlinePlayers) throws IOException {
+		initialise();
+		LOGGER.setLevel(Level.WARNING);
+
+		ONLINE_PLAYERS.clear();
+		HIDDEN_PLAYERS.clear();
+		LOADED_ENTITIES.clear();
+		for (int i = 0; i < onlinePlayers; i++) {
+			ONLINE_PLAYERS.add(player("Player" + i, true));
+		}
+		admin = player("Admin", true);
+
+		Path dataFolder = Files.createTempDirectory("bmpc-benchmark");
+		// Stub-only, so the mock doesn't record every call the benchmarks make and slow them down with it
+		plugin = Mockito.mock(BlueMapPlayerControl.class, Mockito.withSettings().stubOnly());
+		Mockito.when(plugin.getLogger()).thenReturn(LOGGER);
+		Mockito.when(plugin.getDataFolder()).thenReturn(dataFolder.toFile());
+		Mockito.when(plugin.getDescription()).thenReturn(new PluginDescriptionFile("BlueMapPlayerControl", "benchmark", BlueMapPlayerControl.class.getName()));
+		Mockito.when(plugin.getResource(Mockito.anyString())).thenAnswer(invocation -> resource(invocation.getArgument(0)));
+
+		// The benchmarks call commands far faster than the rate limit allows, and debouncing would need a real scheduler
+		Files.writeString(dataFolder.resolve("config.yml"), """
+				rate-limit:
+				  burst: 1000000000
+				  per-second: 1000000000
+				  bulk-burst: 1000000000
+				  bulk-per-second: 1000000000
+				  debounce-ticks: 0
+				""");
+
+		TaskScheduler taskScheduler = new TaskScheduler(plugin);
+		configManager = new ConfigManager(plugin, Runnable::run);
+		VisibilityStore store = new VisibilityStore(dataFolder.resolve("visibility.dat"), LOGGER);
+		Stats stats = new Stats();
+		visibilityManager = new VisibilityManager(configManager, store, stats, LOGGER);
+		TabCompletionIndex tabCompletionIndex = new TabCompletionIndex();
+		ToggleLimiter toggleLimiter = new ToggleLimiter(configManager, taskScheduler);
+		// Not started, so the benchmarks don't measure the disk
+		AuditLog auditLog = new AuditLog(dataFolder.resolve("audit"), configManager.getAuditSettings(), LOGGER);
+		PermissionCache permissionCache = new PermissionCache();
+		GroupVisibility groupVisibility = new GroupVisibility(plugin, dataFolder.resolve("groups.yml"));
+
+		Mockito.when(plugin.getConfigManager()).thenReturn(configManager);
+		Mockito.when(plugin.getTaskScheduler()).thenReturn(taskScheduler);
+		Mockito.when(plugin.getVisibilityManager()).thenReturn(visibilityManager);
+		Mockito.when(plugin.getTabCompletionIndex()).thenReturn(tabCompletionIndex);
+		Mockito.when(plugin.getStats()).thenReturn(stats);
+		Mockito.when(plugin.getToggleLimiter()).thenReturn(toggleLimiter);
+		Mockito.when(plugin.getAuditLog()).thenReturn(auditLog);
+		Mockito.when(plugin.getPermissionCache()).thenReturn(permissionCache);
+		Mockito.when(plugin.getGroupVisibility()).thenReturn(groupVisibility);
+		// Nothing to load, so commands can run right away
+		Mockito.when(plugin.isReady()).thenReturn(true);
+
+		executor = new BMPC(plugin, configManager);
+	}
+
+	/**
+	 * @param index The index of the player
+	 * @return The online player with that index
+	 */
+	public Player onlinePlayer(int index) {
+		return ONLINE_PLAYERS.get(index);
+	}
+
+	/**
+	 * Load entities that aren't players into the world
+	 * @param count The number of entities
+	 */
+	public void loadEntities(int count) {
+		for (int i = 0; i < count; i++) {
+			LOADED_ENTITIES.add(proxy(Entity.class, (proxy, method, args) -> switch (method.getName()) {
+				case "getWorld" -> WORLD;
+				case "equals" -> proxy == args[0];
+				case "hashCode" -> System.identityHashCode(proxy);
+				default -> defaultValue(method);
+			}));
+		}
+	}
+
+	/**
+	 * Create a stub player that is not in the online player list
+	 * @param name The name of the player
+	 * @param permitted Whether the player has every permission, or none at all
+	 * @return The player
+	 */
+	public static Player player(String name, boolean permitted) {
+		UUID uuid = UUID.nameUUIDFromBytes(("OfflinePlayer:" + name).getBytes());
+		// Spread out over the world, so distances differ
+		Location location = new Location(WORLD, Math.floorMod(uuid.hashCode(), 1000), 64, Math.floorMod(uuid.hashCode() >> 10, 1000));
+		return proxy(Player.class, (proxy, method, args) -> switch (method.getName()) {
+			case "getName", "getDisplayName" -> name;
+			case "getWorld" -> WORLD;
+			case "getLocation" -> location;
+			case "getGameMode" -> GameMode.SURVIVAL;
+			case "getUniqueId" -> uuid;
+			case "hasPermission" -> permitted;
+			case "isOnline" -> true;
+			case "locale" -> Locale.ENGLISH;
+			case "getServer" -> Bukkit.getServer();
+			case "equals" -> proxy == args[0];
+			case "hashCode" -> uuid.hashCode();
+			case "toString" -> "StubPlayer{" + name + "}";
+			default -> defaultValue(method);
+		});
+	}
+
+	private static synchronized void initialise() {
+		if (initialised) return;
+		initialised = true;
+
+		Server server = proxy(Server.class, (proxy, method, args) -> switch (method.getName()) {
+			case "getOnlinePlayers" -> Collections.unmodifiableList(ONLINE_PLAYERS);
+			case "selectEntities" -> selectEntities((CommandSender) args[0], (String) args[1]);
+			case "getPlayerExact" -> ONLINE_PLAYERS.stream().filter(player -> player.getName().equalsIgnoreCase((String) args[0])).findFirst().orElse(null);
+			case "isPrimaryThread" -> true;
+			case "getLogger" -> LOGGER;
+			case "getName", "getVersion", "getBukkitVersion" -> "Benchmark";
+			case "equals" -> proxy == args[0];
+			case "hashCode" -> System.identityHashCode(proxy);
+			case "toString" -> "StubServer";
+			default -> defaultValue(method);
+		});
+		try {
+			Bukkit.setServer(server);
+		} catch (RuntimeException e) {
+			// Bukkit logs build information the stub doesn't have; the server is set before that happens
+		}
+
+		try {
+			BlueMapAPI api = Mockito.mock(BlueMapAPI.class, Mockito.withSettings().stubOnly());
+			Mockito.when(api.getWebApp()).thenReturn(WEB_APP);
+			Method registerInstance = BlueMapAPI.class.getDeclaredMethod("registerInstance", BlueMapAPI.class);
+			registerInstance.setAccessible(true);
+			registerInstance.invoke(null, api);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Could not register the BlueMap API stub", e);
+		}
+	}
+
+	/**
+	 * A stand-in for the vanilla selector, that costs about as much as one that scans all loaded entities.
+	 * Only <code>@s</code> and names are evaluated properly; other selectors select all players, and options are ignored.
+	 */
+	private static List<Entity> selectEntities(CommandSender sender, String selector) {
+		List<Entity> selected = new ArrayList<>();
+		if (selector.startsWith("@s")) {
+			if (sender instanceof Player player) selected.add(player);
+		} else if (selector.startsWith("@")) {
+			for (Entity entity : LOADED_ENTITIES) {
+				if (entity instanceof Player) selected.add(entity);
+			}
+			selected.addAll(ONLINE_PLAYERS);
+		} else {
+			for (Player player : ONLINE_PLAYERS) {
+				if (player.getName().equalsIgnoreCase(selector)) selected.add(player);
+			}
+		}
+		return selected;
+	}
+
+	private static InputStream resource(String name) {
+		return BlueMapPlayerControl.class.getClassLoader().getResourceAsStream(name);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(BenchmarkEnvironment.class.getClassLoader(), new Class<?>[]{type}, handler);
+	}
+
+	private static Object defaultValue(Method method) {
+		Class<?> type = method.getReturnType();
+		if (!type.isPrimitive() || type == void.class) return null;
+		if (type == boolean.class) return false;
+		if (type == char.class) return '\0';
+		if (type == float.class) return 0f;
+		if (type == double.class) return 0d;
+		if (type == long.class) return 0L;
+		if (type == int.class) return 0;
+		if (type == short.class) return (short) 0;
+		return (byte) 0;
+	}
+}
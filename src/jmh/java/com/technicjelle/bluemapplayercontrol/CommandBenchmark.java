@@ -0,0 +1,67 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running <code>/bmpc</code> against a single player and against everyone with <code>@a</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+	@Param({"10", "100", "500"})
+	public int onlinePlayers;
+
+	private BenchmarkEnvironment environment;
+	private Command command;
+	private String[] toggleSingle;
+	private String[] toggleAll;
+	private String[] toggleSelf;
+
+	@Setup
+	public void setup() throws IOException {
+		environment = new BenchmarkEnvironment(onlinePlayers);
+		command = new Command("bmpc") {
+			@Override
+			public boolean execute(CommandSender sender, String commandLabel, String[] args) {
+				return false;
+			}
+		};
+		toggleSingle = new String[]{"toggle", environment.onlinePlayer(onlinePlayers / 2).getName()};
+		toggleAll = new String[]{"toggle", "@a"};
+		toggleSelf = new String[]{"toggle"};
+	}
+
+	@Benchmark
+	public boolean toggleSelf() {
+		return environment.executor.onCommand(environment.onlinePlayer(0), command, "bmpc", toggleSelf);
+	}
+
+	@Benchmark
+	public boolean toggleSinglePlayer() {
+		return environment.executor.onCommand(environment.admin, command, "bmpc", toggleSingle);
+	}
+
+	@Benchmark
+	public boolean toggleAllPlayers() {
+		return environment.executor.onCommand(environment.admin, command, "bmpc", toggleAll);
+	}
+}
@@ -0,0 +1,55 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import net.kyori.adventure.text.Component;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering messages from the compiled templates
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+	private ConfigManager configManager;
+
+	@Setup
+	public void setup() throws IOException {
+		configManager = new BenchmarkEnvironment(0).configManager;
+	}
+
+	@Benchmark
+	public String messageFormattedWithoutPlaceholders() {
+		return configManager.getMessageFormatted("status.visible");
+	}
+
+	@Benchmark
+	public String messageFormattedWithPlaceholder() {
+		return configManager.getMessageFormatted("status.other_invisible", "player", "Steve");
+	}
+
+	@Benchmark
+	public Component messageComponentWithPlaceholder() {
+		return configManager.getMessageComponent("status.other_invisible", "player", "Steve");
+	}
+
+	@Benchmark
+	public List<Component> helpMessageComponentList() {
+		return configManager.getMessageComponentList("help", "command", "bmpc", "version", "benchmark");
+	}
+}
@@ -0,0 +1,62 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.bukkit.entity.Player;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The permission check that decides what happens to a joining player.
+ * A player without any permission is the worst case, because every node gets checked when their mask is computed.
+ * The uncached benchmarks forget the mask first, like after a join or a permission change.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PermissionBenchmark {
+	private final PermissionCache permissionCache = new PermissionCache();
+	private Player permitted;
+	private Player unpermitted;
+
+	@Setup
+	public void setup() throws IOException {
+		new BenchmarkEnvironment(0);
+		permitted = BenchmarkEnvironment.player("Permitted", true);
+		unpermitted = BenchmarkEnvironment.player("Unpermitted", false);
+	}
+
+	@Benchmark
+	public boolean withPermission() {
+		return permissionCache.hasVisibilityControl(permitted);
+	}
+
+	@Benchmark
+	public boolean withoutPermission() {
+		return permissionCache.hasVisibilityControl(unpermitted);
+	}
+
+	@Benchmark
+	public boolean withPermissionUncached() {
+		permissionCache.invalidate(permitted.getUniqueId());
+		return permissionCache.hasVisibilityControl(permitted);
+	}
+
+	@Benchmark
+	public boolean withoutPermissionUncached() {
+		permissionCache.invalidate(unpermitted.getUniqueId());
+		return permissionCache.hasVisibilityControl(unpermitted);
+	}
+}
@@ -0,0 +1,64 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import com.technicjelle.bluemapplayercontrol.commands.PlayerSelector;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving the target argument with {@link PlayerSelector}, against selecting entities and keeping the players, like the command used to.
+ * The vanilla selector is played by the stand-in in {@link BenchmarkEnvironment}, which looks at every loaded entity.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectorBenchmark {
+	@Param({"0", "50000"})
+	public int loadedEntities;
+
+	@Param({"Player50", "@a", "@a[gamemode=survival,limit=10]", "@p"})
+	public String argument;
+
+	private BenchmarkEnvironment environment;
+	private Player sender;
+
+	@Setup
+	public void setup() throws IOException {
+		environment = new BenchmarkEnvironment(100);
+		environment.loadEntities(loadedEntities);
+		sender = environment.onlinePlayer(0);
+	}
+
+	@Benchmark
+	public List<Entity> playerSelector() {
+		return PlayerSelector.select(sender, argument);
+	}
+
+	@Benchmark
+	public List<Entity> selectEntities() {
+		List<Entity> players = new ArrayList<>();
+		for (Entity entity : Bukkit.selectEntities(sender, argument)) {
+			if (entity instanceof Player) players.add(entity);
+		}
+		return players;
+	}
+}
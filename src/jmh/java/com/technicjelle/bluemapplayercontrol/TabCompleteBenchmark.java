@@ -0,0 +1,65 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tab completing the first and second argument of <code>/bmpc</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TabCompleteBenchmark {
+	@Param({"10", "100", "1000"})
+	public int onlinePlayers;
+
+	private BenchmarkEnvironment environment;
+	private Command command;
+	private final String[] firstArgument = {""};
+	private final String[] secondArgumentEmpty = {"hide", ""};
+	private final String[] secondArgumentPrefix = {"hide", "Player1"};
+
+	@Setup
+	public void setup() throws IOException {
+		environment = new BenchmarkEnvironment(onlinePlayers);
+		command = new Command("bmpc") {
+			@Override
+			public boolean execute(CommandSender sender, String commandLabel, String[] args) {
+				return false;
+			}
+		};
+	}
+
+	@Benchmark
+	public List<String> firstArgument() {
+		return environment.executor.onTabComplete(environment.admin, command, "bmpc", firstArgument);
+	}
+
+	@Benchmark
+	public List<String> secondArgumentEmpty() {
+		return environment.executor.onTabComplete(environment.admin, command, "bmpc", secondArgumentEmpty);
+	}
+
+	@Benchmark
+	public List<String> secondArgumentPrefix() {
+		return environment.executor.onTabComplete(environment.admin, command, "bmpc", secondArgumentPrefix);
+	}
+}
@@ -0,0 +1,422 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * An append-only log of every visibility change: whose visibility changed, who changed it, why, and when.
+ * <p>
+ * Changes are handed to a dedicated writer thread through a bounded lock-free queue, so the thread that made a change never waits for the disk.
+ * If the writer falls that far behind, changes are dropped and counted instead of blocking the server.
+ * The current file is rotated when it gets too big or too old, and the oldest rotated files are deleted.
+ * <p>
+ * All records have the same size, so the history of a player is found by scanning memory-mapped files from the end,
+ * without reading them into memory.
+ * <p>
+ * File format: the magic number, a format version and when the file was started in milliseconds since the epoch,
+ * then for every change the time in milliseconds since the epoch, the target's UUID as two longs,
+ * the actor's UUID as two longs (all zeroes if no player made the change), the source,
+ * and a byte with the new visibility in bit 0 and the old visibility in bit 1.
+ */
+public class AuditLog implements VisibilityService.VisibilityListener {
+	private static final int MAGIC = 0x424D5041; // "BMPA"
+	private static final byte FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = Integer.BYTES + Byte.BYTES + Long.BYTES;
+	private static final int RECORD_SIZE = Long.BYTES * 5 + Byte.BYTES * 2;
+	private static final int QUEUE_CAPACITY = 65536;
+	private static final int RECORDS_PER_WRITE = 1024;
+	/** How long the writer sleeps when there is nothing to write, before checking whether the file has gotten too old */
+	private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final String CURRENT_FILE = "audit.bin";
+	private static final String ROTATED_PREFIX = "audit-";
+	private static final String SUFFIX = ".bin";
+	private static final DateTimeFormatter ROTATED_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss-SSS").withZone(ZoneId.systemDefault());
+	private static final UUID NO_ACTOR = new UUID(0, 0);
+
+	private final Path directory;
+	private final Settings settings;
+	private final Logger logger;
+	private final Queue<Change> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final LongAdder dropped = new LongAdder();
+	private final ThreadLocal<Cause> cause = ThreadLocal.withInitial(() -> Cause.API);
+	private volatile boolean running;
+	private volatile @Nullable Thread writer;
+
+	// Only used by the writer thread
+	private @Nullable FileChannel channel;
+	private long fileStartedAt;
+
+	/**
+	 * @param directory The directory to keep the files in
+	 * @param settings When to rotate the files, and how many to keep
+	 * @param logger Where to log errors
+	 */
+	public AuditLog(Path directory, Settings settings, Logger logger) {
+		this.directory = directory;
+		this.settings = settings;
+		this.logger = logger;
+	}
+
+	/**
+	 * Start the writer thread, if the audit log is enabled
+	 */
+	public void start() {
+		if (!settings.enabled()) return;
+
+		running = true;
+		Thread thread = new Thread(this::writeLoop, "BlueMapPlayerControl audit");
+		thread.setDaemon(true);
+		writer = thread;
+		thread.start();
+	}
+
+	/**
+	 * Write everything that is still queued, and stop the writer thread
+	 */
+	public void shutdown() {
+		Thread thread = writer;
+		if (thread == null) return;
+
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		writer = null;
+	}
+
+	/**
+	 * Run something, and log the visibility changes it makes on this thread with a cause
+	 * @param cause Who or what makes the changes
+	 * @param action The code that makes the changes
+	 */
+	public void runAs(Cause cause, Runnable action) {
+		Cause previous = this.cause.get();
+		this.cause.set(cause);
+		try {
+			action.run();
+		} finally {
+			this.cause.set(previous);
+		}
+	}
+
+	/**
+	 * @return The cause that changes made on this thread are logged with right now
+	 */
+	public Cause getCause() {
+		return cause.get();
+	}
+
+	@Override
+	public void onVisibilityChange(UUID player, boolean visible) {
+		if (!running) return;
+
+		if (queued.incrementAndGet() > QUEUE_CAPACITY) {
+			queued.decrementAndGet();
+			dropped.increment();
+			return;
+		}
+		Cause current = cause.get();
+		// Listeners are only called for actual changes, so the old visibility is always the opposite
+		queue.add(new Change(System.currentTimeMillis(), player, current.actor(), current.source(), !visible, visible));
+		LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Find the most recent changes to a player, newest first. Reads from disk, so should be called from an async thread.
+	 * @param target The player's UUID
+	 * @param limit How many changes to return at most
+	 * @return The changes
+	 * @throws IOException If the files could not be read
+	 */
+	public List<Change> getHistory(UUID target, int limit) throws IOException {
+		List<Change> changes = new ArrayList<>();
+		if (!Files.isDirectory(directory)) return changes;
+
+		List<Path> files = new ArrayList<>();
+		files.add(directory.resolve(CURRENT_FILE));
+		files.addAll(getRotatedFiles().reversed());
+		for (Path file : files) {
+			if (changes.size() >= limit) break;
+			try {
+				readHistory(file, target, limit, changes);
+			} catch (NoSuchFileException e) {
+				// Not written yet, or deleted by a rotation while we were looking
+			}
+		}
+		return changes;
+	}
+
+	private static void readHistory(Path file, UUID target, int limit, List<Change> changes) throws IOException {
+		try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = fileChannel.size();
+			if (size < HEADER_SIZE) return;
+
+			// The writer may be halfway through a record at the end
+			int count = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+			MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + (long) count * RECORD_SIZE);
+			if (buffer.getInt(0) != MAGIC || buffer.get(Integer.BYTES) != FORMAT_VERSION) return;
+
+			long msb = target.getMostSignificantBits();
+			long lsb = target.getLeastSignificantBits();
+			for (int i = count - 1; i >= 0 && changes.size() < limit; i--) {
+				int offset = HEADER_SIZE + i * RECORD_SIZE;
+				if (buffer.getLong(offset + Long.BYTES) != msb || buffer.getLong(offset + Long.BYTES * 2) != lsb) continue;
+
+				int source = buffer.get(offset + Long.BYTES * 5);
+				if (source < 0 || source >= Source.VALUES.length) continue;
+				UUID actor = new UUID(buffer.getLong(offset + Long.BYTES * 3), buffer.getLong(offset + Long.BYTES * 4));
+				int state = buffer.get(offset + Long.BYTES * 5 + 1);
+				changes.add(new Change(buffer.getLong(offset), target, actor.equals(NO_ACTOR) ? null : actor,
+						Source.VALUES[source], (state & 2) != 0, (state & 1) != 0));
+			}
+		}
+	}
+
+	private void writeLoop() {
+		ByteBuffer buffer = ByteBuffer.allocate(RECORDS_PER_WRITE * RECORD_SIZE);
+		try {
+			while (true) {
+				Change change = queue.poll();
+				if (change == null) {
+					if (!running) {
+						// Changes may have been queued right before stopping
+						if (queue.isEmpty()) break;
+						continue;
+					}
+					rotateIfNeeded();
+					LockSupport.parkNanos(this, IDLE_NANOS);
+					continue;
+				}
+
+				buffer.clear();
+				int count = 0;
+				do {
+					encode(buffer, change);
+					count++;
+				} while (count < RECORDS_PER_WRITE && (change = queue.poll()) != null);
+				queued.addAndGet(-count);
+				buffer.flip();
+				write(buffer);
+
+				long lost = dropped.sumThenReset();
+				if (lost > 0) logger.warning("The audit log couldn't keep up, and dropped " + lost + " changes");
+			}
+		} finally {
+			closeChannel();
+		}
+	}
+
+	private static void encode(ByteBuffer buffer, Change change) {
+		UUID actor = change.actor() == null ? NO_ACTOR : change.actor();
+		buffer.putLong(change.time());
+		buffer.putLong(change.target().getMostSignificantBits());
+		buffer.putLong(change.target().getLeastSignificantBits());
+		buffer.putLong(actor.getMostSignificantBits());
+		buffer.putLong(actor.getLeastSignificantBits());
+		buffer.put((byte) change.source().ordinal());
+		buffer.put((byte) ((change.wasVisible() ? 2 : 0) | (change.visible() ? 1 : 0)));
+	}
+
+	private void write(ByteBuffer buffer) {
+		try {
+			FileChannel current = channel;
+			if (current == null) {
+				current = open();
+			} else if (current.size() > HEADER_SIZE && current.size() + buffer.remaining() > settings.maxFileSize()) {
+				current = rotate();
+			}
+			while (buffer.hasRemaining()) {
+				current.write(buffer);
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not write to the audit log", e);
+			// Opened again for the next write
+			closeChannel();
+		}
+	}
+
+	private void rotateIfNeeded() {
+		FileChannel current = channel;
+		if (current == null || System.currentTimeMillis() - fileStartedAt < settings.maxFileAge()) return;
+
+		try {
+			if (current.size() > HEADER_SIZE) rotate();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not rotate the audit log", e);
+			closeChannel();
+		}
+	}
+
+	private FileChannel rotate() throws IOException {
+		closeChannel();
+		String name = ROTATED_PREFIX + ROTATED_TIME_FORMAT.format(Instant.now()) + SUFFIX;
+		Files.move(directory.resolve(CURRENT_FILE), directory.resolve(name));
+
+		List<Path> rotated = getRotatedFiles();
+		for (int i = 0; i < rotated.size() - settings.maxFiles(); i++) {
+			Files.deleteIfExists(rotated.get(i));
+		}
+		return open();
+	}
+
+	private FileChannel open() throws IOException {
+		Files.createDirectories(directory);
+		Path file = directory.resolve(CURRENT_FILE);
+		FileChannel opened = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long size = opened.size();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			if (size >= HEADER_SIZE) {
+				opened.read(header, 0);
+				header.flip();
+			}
+
+			if (size >= HEADER_SIZE && header.getInt() == MAGIC && header.get() == FORMAT_VERSION) {
+				fileStartedAt = header.getLong();
+				// Cut off a record that was only partly written when the server stopped
+				long end = HEADER_SIZE + (size - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+				if (end != size) opened.truncate(end);
+				opened.position(end);
+			} else {
+				if (size > 0) logger.warning("Starting over with " + CURRENT_FILE + ": unknown file format");
+				opened.truncate(0);
+				fileStartedAt = System.currentTimeMillis();
+				header.clear();
+				header.putInt(MAGIC).put(FORMAT_VERSION).putLong(fileStartedAt).flip();
+				while (header.hasRemaining()) {
+					opened.write(header);
+				}
+			}
+		} catch (IOException e) {
+			opened.close();
+			throw e;
+		}
+		channel = opened;
+		return opened;
+	}
+
+	private void closeChannel() {
+		FileChannel current = channel;
+		if (current == null) return;
+
+		channel = null;
+		try {
+			current.close();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not close the audit log", e);
+		}
+	}
+
+	/**
+	 * @return The rotated files, oldest first
+	 */
+	private List<Path> getRotatedFiles() throws IOException {
+		if (!Files.isDirectory(directory)) return List.of();
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> {
+						String name = file.getFileName().toString();
+						return name.startsWith(ROTATED_PREFIX) && name.endsWith(SUFFIX);
+					})
+					.sorted(Comparator.comparing(file -> file.getFileName().toString()))
+					.toList();
+		}
+	}
+
+	/**
+	 * @param enabled Whether changes are logged
+	 * @param maxFileSize How big a file may get before it is rotated, in bytes
+	 * @param maxFileAge How old a file may get before it is rotated, in milliseconds
+	 * @param maxFiles How many rotated files to keep
+	 */
+	public record Settings(boolean enabled, long maxFileSize, long maxFileAge, int maxFiles) {
+	}
+
+	/**
+	 * What made a visibility change
+	 */
+	public enum Source {
+		COMMAND("command"),
+		API("api"),
+		RULES("rules"),
+		JOIN("join"),
+		TIMED("timed"),
+		SYNC("sync"),
+		GROUPS("groups");
+
+		private static final Source[] VALUES = values();
+
+		private final String name;
+
+		Source(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * @param actor The player that made the change, or <code>null</code> if it wasn't a player
+	 * @param source What made the change
+	 */
+	public record Cause(@Nullable UUID actor, Source source) {
+		/** Another plugin, or anything else that isn't known */
+		public static final Cause API = new Cause(null, Source.API);
+		public static final Cause RULES = new Cause(null, Source.RULES);
+		public static final Cause JOIN = new Cause(null, Source.JOIN);
+		public static final Cause TIMED = new Cause(null, Source.TIMED);
+		public static final Cause SYNC = new Cause(null, Source.SYNC);
+		public static final Cause GROUPS = new Cause(null, Source.GROUPS);
+
+		/**
+		 * @param sender The sender of a command
+		 * @return The cause of changes made by the command
+		 */
+		public static Cause of(CommandSender sender) {
+			return new Cause(sender instanceof Player player ? player.getUniqueId() : null, Source.COMMAND);
+		}
+	}
+
+	/**
+	 * One visibility change
+	 * @param time When the change was made, in milliseconds since the epoch
+	 * @param target The UUID of the player whose visibility changed
+	 * @param actor The UUID of the player that made the change, or <code>null</code> if it wasn't a player
+	 * @param source What made the change
+	 * @param wasVisible Whether the player was visible before the change
+	 * @param visible Whether the player is visible after the change
+	 */
+	public record Change(long time, UUID target, @Nullable UUID actor, Source source, boolean wasVisible, boolean visible) {
+	}
+}
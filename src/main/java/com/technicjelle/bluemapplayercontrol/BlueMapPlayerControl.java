@@ -2,154 +2,363 @@ package com.technicjelle.bluemapplayercontrol;
 
 import com.technicjelle.UpdateChecker;
 import com.technicjelle.bluemapplayercontrol.commands.BMPC;
+import com.technicjelle.bluemapplayercontrol.commands.PaperCommands;
+import com.technicjelle.bluemapplayercontrol.commands.TabCompletionIndex;
 import de.bluecolored.bluemap.api.BlueMapAPI;
 import org.bstats.bukkit.Metrics;
 import org.bukkit.Bukkit;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandMap;
 import org.bukkit.command.CommandSender;
-import org.bukkit.command.PluginCommand;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
-import org.bukkit.event.player.PlayerLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.jetbrains.annotations.NotNull;
 
-import java.lang.reflect.Field;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
 
 public final class BlueMapPlayerControl extends JavaPlugin implements Listener {
-	UpdateChecker updateChecker;
+	volatile UpdateChecker updateChecker;
 	BMPC executor;
 	ConfigManager configManager;
+	TaskScheduler taskScheduler;
+	VisibilityStore visibilityStore;
+	VisibilityManager visibilityManager;
+	JoinVisibilityQueue joinQueue;
+	TabCompletionIndex tabCompletionIndex;
+	Stats stats;
+	VisibilityRuleEngine ruleEngine;
+	ToggleLimiter toggleLimiter;
+	VisibilityServiceProvider visibilityService;
+	TimedVisibility timedVisibility;
+	VisibilityPresets visibilityPresets;
+	PlayerNameCache playerNameCache;
+	VisibilitySync visibilitySync;
+	AuditLog auditLog;
+	PermissionCache permissionCache;
+	LuckPermsHook luckPermsHook;
+	PaperCommands paperCommands;
+	GroupVisibility groupVisibility;
+	private final Map<String, Command> registeredCommands = new HashMap<>();
+	private CompletableFuture<Void> ready;
 
 	@Override
 	public void onEnable() {
-		// Initialize configuration manager
-		configManager = new ConfigManager(this);
+		StartupTimer startup = new StartupTimer(getLogger());
+		taskScheduler = new TaskScheduler(this);
+		stats = new Stats();
+		
+		// Initialize configuration manager; the messages are compiled in the background
+		startup.run("config", () -> configManager = new ConfigManager(this, taskScheduler::runAsync));
+		startup.track("messages", configManager.getMessagesFuture());
+		
+		// The stored visibilities are loaded in the background, see loadData
+		startup.run("storage", () -> {
+			visibilityStore = new VisibilityStore(getDataFolder().toPath().resolve("visibility.dat"), getLogger());
+			visibilityManager = new VisibilityManager(configManager, visibilityStore, stats, getLogger());
+			
+			// Log who changes whose visibility
+			auditLog = new AuditLog(getDataFolder().toPath().resolve("audit"), configManager.getAuditSettings(), getLogger());
+			visibilityManager.addListener(auditLog);
+		});
+		
+		startup.run("services", () -> {
+			// Remember permissions, and forget them when LuckPerms changes them
+			permissionCache = new PermissionCache();
+			if (Bukkit.getPluginManager().isPluginEnabled("LuckPerms")) {
+				luckPermsHook = new LuckPermsHook(this, permissionCache);
+			}
+			joinQueue = new JoinVisibilityQueue(this);
+			ruleEngine = new VisibilityRuleEngine(this, getDataFolder().toPath().resolve("rules.yml"));
+			taskScheduler.runAsyncTimer(ruleEngine::checkVanished, VisibilityRuleEngine.VANISH_CHECK_INTERVAL_SECONDS);
+			toggleLimiter = new ToggleLimiter(configManager, taskScheduler);
+			
+			// Let other plugins control visibility
+			visibilityService = new VisibilityServiceProvider(this);
+			Bukkit.getServicesManager().register(VisibilityService.class, visibilityService, this, ServicePriority.Normal);
+			
+			// Temporary visibility changes, groups that are hidden as a whole, and visibilities of offline players
+			timedVisibility = new TimedVisibility(getDataFolder().toPath().resolve("timed.dat"), getLogger());
+			visibilityManager.addListener(timedVisibility);
+			groupVisibility = new GroupVisibility(this, getDataFolder().toPath().resolve("groups.yml"));
+			visibilityPresets = new VisibilityPresets(getDataFolder().toPath().resolve("presets.yml"), taskScheduler::runAsync, getLogger());
+			
+			// Offline players can be looked up by name
+			playerNameCache = new PlayerNameCache(taskScheduler::runAsync, getLogger());
+			playerNameCache.loadUserCache();
+			startStatsFile();
+		});
+		
+		// Reading the files and connecting to the other servers doesn't hold up the server;
+		// BlueMap, joining players and commands wait until it is done
+		ready = startup.defer("loading", taskScheduler::runAsync, this::loadData);
+		
+		// Metrics and the update check aren't needed to play, so they wait until the server has started
+		startup.defer("metrics", task -> taskScheduler.runGlobal(task, 1), () -> new Metrics(this, 18378));
+		startup.defer("update checker", taskScheduler::runAsync, () -> {
+			UpdateChecker checker = new UpdateChecker("TechnicJelle", "BlueMapPlayerControl", getDescription().getVersion());
+			checker.check();
+			updateChecker = checker;
+			// Otherwise it is logged when BlueMap enables
+			if (BlueMapAPI.getInstance().isPresent()) checker.logUpdateMessage(getLogger());
+		});
 		
-		// Log enabled message
-		getLogger().info("[BlueMapPlayerControl] Plugin enabled successfully");
-
-		// Initialize metrics
-		new Metrics(this, 18378);
-
-		// Initialize update checker
-		updateChecker = new UpdateChecker("TechnicJelle", "BlueMapPlayerControl", getDescription().getVersion());
-		updateChecker.checkAsync();
-
 		// Register BlueMap callback
-		BlueMapAPI.onEnable(api -> updateChecker.logUpdateMessage(getLogger()));
-
-		// Register event listener
-		Bukkit.getPluginManager().registerEvents(this, this);
-
+		BlueMapAPI.onEnable(api -> {
+			UpdateChecker checker = updateChecker;
+			if (checker != null) checker.logUpdateMessage(getLogger());
+			whenReady(() -> {
+				visibilityManager.restore(api.getWebApp());
+				ruleEngine.evaluateAll();
+				taskScheduler.runGlobal(groupVisibility::evaluateAll);
+			});
+		});
+		BlueMapAPI.onDisable(api -> visibilityManager.invalidate());
+		
+		// Register event listeners
+		startup.run("listeners", () -> {
+			Bukkit.getPluginManager().registerEvents(this, this);
+			tabCompletionIndex = new TabCompletionIndex();
+			Bukkit.getPluginManager().registerEvents(tabCompletionIndex, this);
+			Bukkit.getPluginManager().registerEvents(ruleEngine, this);
+			Bukkit.getPluginManager().registerEvents(toggleLimiter, this);
+			Bukkit.getPluginManager().registerEvents(playerNameCache, this);
+			Bukkit.getPluginManager().registerEvents(permissionCache, this);
+			Bukkit.getPluginManager().registerEvents(groupVisibility, this);
+		});
+		
 		// Register command
-		registerCommand();
+		startup.run("command", this::registerCommand);
+		
+		// Log enabled message
+		startup.finish();
 	}
 
 	@Override
 	public void onDisable() {
+		if (taskScheduler != null) taskScheduler.cancelAll();
+		if (visibilitySync != null) visibilitySync.close();
+		if (luckPermsHook != null) luckPermsHook.close();
+		Bukkit.getServicesManager().unregisterAll(this);
+		unregisterCommands();
+		
+		// Write any pending visibility changes; each file is only written if it was loaded, so a failed or unfinished startup doesn't empty it
+		if (visibilityStore != null) visibilityStore.shutdown();
+		if (timedVisibility != null) timedVisibility.save();
+		if (visibilityPresets != null) visibilityPresets.save();
+		if (groupVisibility != null) groupVisibility.save();
+		if (ruleEngine != null) ruleEngine.save();
+		if (auditLog != null) auditLog.shutdown();
+		
 		getLogger().info("[BlueMapPlayerControl] Plugin disabled");
 	}
 	
+	/**
+	 * Register the command and its aliases, or update them to match the config after a reload
+	 */
 	public void registerCommand() {
 		String commandName = configManager.getCommandName();
 		
 		// Create executor first
-		executor = new BMPC(this, configManager);
+		if (executor == null) {
+			executor = new BMPC(this, configManager);
+		}
 		
-		// Always create commands dynamically since they're not in plugin.yml
-		createDynamicCommand(commandName);
-		// Register aliases for dynamic command
-		registerAliasesForDynamicCommand();
+		Set<String> labels = new LinkedHashSet<>();
+		labels.add(commandName.toLowerCase(Locale.ROOT));
+		for (String alias : configManager.getCommandAliases()) {
+			labels.add(alias.toLowerCase(Locale.ROOT));
+		}
+		
+		// Paper sends the whole command tree to clients, but only takes commands when the server starts or reloads its data
+		if (paperCommands != null || BMPC.isPaperCommandApiAvailable()) {
+			if (paperCommands == null) {
+				paperCommands = new PaperCommands(this, executor, configManager);
+				paperCommands.register();
+			} else if (!paperCommands.getLabels().equals(labels)) {
+				reregisterPaperCommands(labels);
+			}
+		} else {
+			registerDynamicCommands(labels);
+		}
 		
 		// Log command registration
 		String aliases = String.join(", ", configManager.getCommandAliases());
 		getLogger().info("[BlueMapPlayerControl] Command '" + commandName + "' registered with aliases: " + aliases);
 	}
 	
-	private PluginCommand createDynamicCommand(String commandName) {
-		try {
-			// Get CommandMap through reflection
-			Field commandMapField = Bukkit.getServer().getClass().getDeclaredField("commandMap");
-			commandMapField.setAccessible(true);
-			CommandMap commandMap = (CommandMap) commandMapField.get(Bukkit.getServer());
-			
-			// Create a custom command that delegates to our executor
-			Command customCommand = new Command(commandName) {
-				@Override
-				public boolean execute(CommandSender sender, String commandLabel, String[] args) {
-					if (executor != null) {
-						return executor.onCommand(sender, this, commandLabel, args);
-					}
-					return false;
-				}
-				
-				@Override
-				public List<String> tabComplete(CommandSender sender, String alias, String[] args) {
-					if (executor != null) {
-						return executor.onTabComplete(sender, this, alias, args);
-					}
-					return null;
-				}
-			};
-			
-			customCommand.setDescription("Control player visibility on BlueMap");
-			customCommand.setPermission("bmpc");
-			customCommand.setUsage("/<command> [help | toggle | show | hide] [player]");
-			
-			// Register the command
-			commandMap.register(getName().toLowerCase(), customCommand);
-			
-			// Return null since we're using a custom Command instead of PluginCommand
-			// The executor will be set on the custom command directly
-			return null;
-		} catch (Exception e) {
-			getLogger().warning("Failed to create dynamic command: " + e.getMessage());
-			return null;
+	/**
+	 * Register added labels on Paper, where the command API only takes commands when the server starts.
+	 * Reloading the server's data would register them too, but that reloads every datapack and freezes the server,
+	 * so the added labels are registered in the command map instead, and removed ones stay until a restart.
+	 */
+	private void reregisterPaperCommands(Set<String> labels) {
+		Set<String> added = new LinkedHashSet<>(labels);
+		added.removeAll(paperCommands.getLabels());
+		registerDynamicCommands(added);
+		if (!labels.containsAll(paperCommands.getLabels())) {
+			getLogger().warning("[BlueMapPlayerControl] Removed command aliases stay until the server restarts");
 		}
 	}
 	
-	private void registerAliasesForDynamicCommand() {
-		try {
-			// Get CommandMap through reflection
-			Field commandMapField = Bukkit.getServer().getClass().getDeclaredField("commandMap");
-			commandMapField.setAccessible(true);
-			CommandMap commandMap = (CommandMap) commandMapField.get(Bukkit.getServer());
-			
-			// Register each alias
-			for (String alias : configManager.getCommandAliases()) {
-				// Create a new command for each alias
-				Command aliasCommand = new Command(alias) {
-					@Override
-					public boolean execute(CommandSender sender, String commandLabel, String[] args) {
-						if (executor != null) {
-							return executor.onCommand(sender, this, commandLabel, args);
-						}
-						return false;
-					}
-					
-					@Override
-					public List<String> tabComplete(CommandSender sender, String alias, String[] args) {
-						if (executor != null) {
-							return executor.onTabComplete(sender, this, alias, args);
-						}
-						return null;
+	/**
+	 * Register the labels in the command map, for servers without Paper's command API.
+	 * Only labels that were added or removed are touched, so reloading doesn't leak commands.
+	 */
+	private void registerDynamicCommands(Set<String> labels) {
+		CommandMap commandMap = Bukkit.getCommandMap();
+		boolean changed = false;
+		
+		// Unregister labels that were removed from the config
+		Iterator<Map.Entry<String, Command>> iterator = registeredCommands.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Command> entry = iterator.next();
+			if (!labels.contains(entry.getKey())) {
+				unregisterCommand(commandMap, entry.getKey(), entry.getValue());
+				iterator.remove();
+				changed = true;
+			}
+		}
+		
+		// Always create commands dynamically since they're not in plugin.yml
+		for (String label : labels) {
+			if (!registeredCommands.containsKey(label)) {
+				Command command = new DynamicCommand(label);
+				commandMap.register(getName().toLowerCase(Locale.ROOT), command);
+				registeredCommands.put(label, command);
+				changed = true;
+			}
+		}
+		
+		// Let clients know about the new command tree
+		if (changed) {
+			for (Player player : Bukkit.getOnlinePlayers()) {
+				taskScheduler.runForEntity(player, player::updateCommands);
+			}
+		}
+	}
+	
+	/**
+	 * Read the stored data and connect to the other servers.
+	 * Runs in the background during startup; whatever needs the data uses {@link #whenReady(Runnable)}.
+	 */
+	private void loadData() {
+		visibilityStore.load();
+		visibilityStore.startFlushing(configManager.getSaveInterval());
+		auditLog.start();
+		
+		// Check once per second if any temporary changes have expired
+		timedVisibility.load();
+		taskScheduler.runAsyncTimer(() -> auditLog.runAs(AuditLog.Cause.TIMED, () -> timedVisibility.tick(visibilityService)), 1);
+		
+		// Teams and permissions have no events, so groups are checked every few seconds
+		groupVisibility.load();
+		taskScheduler.runAsyncTimer(() -> taskScheduler.runGlobal(groupVisibility::refreshAll), GroupVisibility.REFRESH_INTERVAL_SECONDS);
+		
+		visibilityPresets.load();
+		ruleEngine.load();
+		
+		// Keep visibilities the same on the other servers behind the proxy
+		startSync();
+	}
+	
+	private void startStatsFile() {
+		long interval = configManager.getStatsFileInterval();
+		if (interval <= 0) return;
+		
+		Path file = getDataFolder().toPath().resolve("stats.prom");
+		taskScheduler.runAsyncTimer(() -> {
+			try {
+				stats.writePrometheus(file);
+			} catch (IOException e) {
+				getLogger().log(Level.WARNING, "Could not write the statistics file", e);
+			}
+		}, interval);
+	}
+	
+	private void startSync() {
+		VisibilitySync.Settings settings = configManager.getSyncSettings();
+		if (!settings.enabled()) return;
+		
+		SyncTransport transport;
+		switch (settings.transport().toLowerCase(Locale.ROOT)) {
+			case "plugin-messaging" -> transport = new PluginMessageSyncTransport(this, taskScheduler);
+			case "udp" -> {
+				List<InetSocketAddress> peers = new ArrayList<>();
+				for (String peer : settings.udpPeers()) {
+					try {
+						peers.add(UdpSyncTransport.parseAddress(peer));
+					} catch (IllegalArgumentException e) {
+						getLogger().warning("Ignoring sync peer: " + e.getMessage());
 					}
-				};
-				
-				// Set the same permission and description
-				aliasCommand.setPermission("bmpc");
-				aliasCommand.setDescription("Control player visibility on BlueMap");
-				aliasCommand.setUsage("/<command> [help | toggle | show | hide] [player]");
-				
-				// Register the alias
-				commandMap.register(getName().toLowerCase(), aliasCommand);
+				}
+				transport = new UdpSyncTransport(settings.udpBind(), settings.udpPort(), peers, getLogger());
+			}
+			default -> {
+				getLogger().warning("Unknown sync transport '" + settings.transport() + "', visibilities will not be synced");
+				return;
 			}
-		} catch (Exception e) {
-			getLogger().warning("Failed to register aliases: " + e.getMessage());
 		}
+		
+		// Changes from other servers are applied on the global region, and local changes are sent once per tick
+		visibilitySync = new VisibilitySync(transport,
+				(player, visible) -> BlueMapAPI.getInstance().ifPresent(api -> auditLog.runAs(AuditLog.Cause.SYNC,
+						() -> visibilityManager.setVisibility(api.getWebApp(), player, visible))),
+				taskScheduler::runGlobal,
+				task -> taskScheduler.runGlobal(task, 1),
+				stats,
+				getLogger());
+		visibilitySync.seed(visibilityStore);
+		visibilityManager.addListener(visibilitySync);
+		visibilitySync.start();
+	}
+	
+	private void unregisterCommands() {
+		CommandMap commandMap = Bukkit.getCommandMap();
+		registeredCommands.forEach((label, command) -> unregisterCommand(commandMap, label, command));
+		registeredCommands.clear();
+	}
+	
+	private void unregisterCommand(CommandMap commandMap, String label, Command command) {
+		Map<String, Command> knownCommands = commandMap.getKnownCommands();
+		knownCommands.remove(label, command);
+		knownCommands.remove(getName().toLowerCase(Locale.ROOT) + ":" + label, command);
+		command.unregister(commandMap);
+		configManager.debugLog("Unregistered command label '%s'", label);
+	}
+	
+	/**
+	 * Check if the stored data has been loaded
+	 * @return true once the startup has loaded it, even if some of it could not be read
+	 */
+	public boolean isReady() {
+		return ready != null && ready.isDone();
+	}
+	
+	/**
+	 * Run something once the stored data has been loaded, or right away if it already has.
+	 * It also runs if loading failed, with whatever was loaded; files that weren't loaded aren't written.
+	 * Later tasks run on the thread that loaded the data, so they should schedule any work that needs a specific thread.
+	 * @param task The task
+	 */
+	public void whenReady(Runnable task) {
+		ready.whenComplete((result, e) -> task.run());
 	}
 	
 	/**
@@ -160,33 +369,135 @@ public final class BlueMapPlayerControl extends JavaPlugin implements Listener {
 		return configManager;
 	}
 	
-	@EventHandler
-	public void onPlayerLogin(PlayerLoginEvent event) {
-		Player player = event.getPlayer();
-		
-		// Check if player has any permission to control visibility
-		if (!hasVisibilityControlPermission(player)) {
-			// If player doesn't have permission, make them visible on the map
-			// Execute immediately since we can't use Folia schedulers in this API version
-			if (BlueMapAPI.getInstance().isPresent()) {
-				BlueMapAPI api = BlueMapAPI.getInstance().get();
-				api.getWebApp().setPlayerVisibility(player.getUniqueId(), true);
-				configManager.debugLog("Player %s has no visibility control permission, automatically made visible", player.getName());
-			}
-		}
+	/**
+	 * Get the task scheduler
+	 * @return TaskScheduler instance
+	 */
+	public TaskScheduler getTaskScheduler() {
+		return taskScheduler;
+	}
+	
+	/**
+	 * Get the tab completion index
+	 * @return TabCompletionIndex instance
+	 */
+	public TabCompletionIndex getTabCompletionIndex() {
+		return tabCompletionIndex;
+	}
+	
+	/**
+	 * Get the visibility manager
+	 * @return VisibilityManager instance
+	 */
+	public VisibilityManager getVisibilityManager() {
+		return visibilityManager;
+	}
+	
+	/**
+	 * Get the visibility rule engine
+	 * @return VisibilityRuleEngine instance
+	 */
+	public VisibilityRuleEngine getVisibilityRuleEngine() {
+		return ruleEngine;
+	}
+	
+	/**
+	 * Get the toggle limiter
+	 * @return ToggleLimiter instance
+	 */
+	public ToggleLimiter getToggleLimiter() {
+		return toggleLimiter;
+	}
+	
+	/**
+	 * Get the visibility service that other plugins use
+	 * @return VisibilityService instance
+	 */
+	public VisibilityService getVisibilityService() {
+		return visibilityService;
+	}
+	
+	/**
+	 * Get the temporary visibility changes
+	 * @return TimedVisibility instance
+	 */
+	public TimedVisibility getTimedVisibility() {
+		return timedVisibility;
+	}
+	
+	/**
+	 * Get the visibilities that were set for offline players
+	 * @return VisibilityPresets instance
+	 */
+	public VisibilityPresets getVisibilityPresets() {
+		return visibilityPresets;
+	}
+	
+	/**
+	 * Get the name to UUID cache
+	 * @return PlayerNameCache instance
+	 */
+	public PlayerNameCache getPlayerNameCache() {
+		return playerNameCache;
+	}
+	
+	/**
+	 * Get the cache of player permissions
+	 * @return PermissionCache instance
+	 */
+	public PermissionCache getPermissionCache() {
+		return permissionCache;
+	}
+	
+	/**
+	 * Get the visibility of the groups
+	 * @return GroupVisibility instance
+	 */
+	public GroupVisibility getGroupVisibility() {
+		return groupVisibility;
+	}
+	
+	/**
+	 * Get the audit log of visibility changes
+	 * @return AuditLog instance
+	 */
+	public AuditLog getAuditLog() {
+		return auditLog;
+	}
+	
+	/**
+	 * Get the runtime statistics
+	 * @return Stats instance
+	 */
+	public Stats getStats() {
+		return stats;
+	}
+	
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerJoin(PlayerJoinEvent event) {
+		// Permissions and visibility are handled later, in batches
+		joinQueue.add(event.getPlayer());
 	}
 	
 	/**
-	 * Check if player has any permission to control visibility
-	 * @param player The player to check
-	 * @return true if player has any visibility control permission
+	 * A command that delegates to the executor, so it survives the executor's settings changing on reload
 	 */
-	private boolean hasVisibilityControlPermission(Player player) {
-		return player.hasPermission("bmpc.self.toggle") ||
-			   player.hasPermission("bmpc.self.show") ||
-			   player.hasPermission("bmpc.self.hide") ||
-			   player.hasPermission("bmpc.others.toggle") ||
-			   player.hasPermission("bmpc.others.show") ||
-			   player.hasPermission("bmpc.others.hide");
+	private final class DynamicCommand extends Command {
+		private DynamicCommand(String name) {
+			super(name);
+			setDescription(BMPC.DESCRIPTION);
+			setPermission("bmpc");
+			setUsage("/<command> [help | toggle | show | hide] [player] [duration]");
+		}
+		
+		@Override
+		public boolean execute(@NotNull CommandSender sender, @NotNull String commandLabel, @NotNull String[] args) {
+			return executor.onCommand(sender, this, commandLabel, args);
+		}
+		
+		@Override
+		public @NotNull List<String> tabComplete(@NotNull CommandSender sender, @NotNull String alias, @NotNull String[] args) {
+			return executor.onTabComplete(sender, this, alias, args);
+		}
 	}
 }
@@ -1,103 +1,213 @@
 package com.technicjelle.bluemapplayercontrol;
 
 import net.kyori.adventure.text.Component;
-import net.kyori.adventure.text.minimessage.MiniMessage;
 import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ConfigManager {
     private final JavaPlugin plugin;
     private final Logger logger;
-    private final MiniMessage miniMessage;
     private final LegacyComponentSerializer legacySerializer;
+    private final Executor ioExecutor;
+    private final DebugTrace debugTrace = new DebugTrace();
     
-    private FileConfiguration config;
-    private FileConfiguration messages;
-    private String commandName;
-    private List<String> commandAliases;
-    private boolean minimessageEnabled;
-    private boolean debugEnabled;
+    /** Everything that was loaded from the config and messages files; replaced as a whole on reload */
+    private volatile Snapshot snapshot;
     
-    public ConfigManager(JavaPlugin plugin) {
+    /**
+     * @param plugin The plugin
+     * @param ioExecutor The executor to load files on after startup, like on reloads and for other languages
+     */
+    public ConfigManager(JavaPlugin plugin, Executor ioExecutor) {
         this.plugin = plugin;
         this.logger = plugin.getLogger();
-        this.miniMessage = MiniMessage.miniMessage();
         this.legacySerializer = LegacyComponentSerializer.legacySection();
+        this.ioExecutor = ioExecutor;
         
-        loadConfig();
-        loadMessages();
+        try {
+            snapshot = loadSnapshot(true);
+        } catch (IOException | InvalidConfigurationException e) {
+            logger.log(Level.SEVERE, "Could not load configuration, using the defaults", e);
+            snapshot = loadDefaultSnapshot();
+        }
+    }
+    
+    /**
+     * The messages are loaded and compiled in the background at startup, and are waited for when first used
+     * @return A future that completes once the current messages are compiled
+     */
+    public CompletableFuture<MessageBundle> getMessagesFuture() {
+        return snapshot.defaultBundle;
+    }
+    
+    /**
+     * Reload the config and messages files in the background.
+     * The new settings only replace the current ones once everything has loaded successfully;
+     * if anything fails, the current settings stay in use.
+     * @return A future that completes once the new settings are in use
+     */
+    public CompletableFuture<Void> reloadAsync() {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                snapshot = loadSnapshot(false);
+            } catch (IOException | InvalidConfigurationException e) {
+                logger.log(Level.WARNING, "Could not reload configuration, keeping the previous one", e);
+                throw new IllegalStateException(e);
+            }
+        }, ioExecutor);
     }
     
-    private void loadConfig() {
+    /**
+     * @param deferMessages Whether to load the messages in the background, instead of before returning
+     */
+    private Snapshot loadSnapshot(boolean deferMessages) throws IOException, InvalidConfigurationException {
         // Save default config if not exists
         plugin.saveDefaultConfig();
-        config = plugin.getConfig();
-        
-        // Load command settings
-        commandName = config.getString("command.name", "bmpc");
-        commandAliases = config.getStringList("command.aliases");
-        minimessageEnabled = config.getBoolean("language.minimessage", true);
+        YamlConfiguration config = loadYaml(new File(plugin.getDataFolder(), "config.yml"), "config.yml");
+        logger.info("Configuration loaded");
         
-        // Load plugin settings
-        debugEnabled = config.getBoolean("settings.debug", false);
+        String languageFile = config.getString("language.file", "en");
+        if (!deferMessages) {
+            return new Snapshot(config, languageFile, CompletableFuture.completedFuture(loadMessages(languageFile)));
+        }
         
-        logger.info("Configuration loaded");
+        // Nothing is sent until the server has started, so the messages don't need to hold up the startup
+        CompletableFuture<YamlConfiguration> messages = CompletableFuture.supplyAsync(() -> {
+            try {
+                return loadMessages(languageFile);
+            } catch (IOException | InvalidConfigurationException e) {
+                throw new CompletionException(e);
+            }
+        }, ioExecutor).exceptionally(e -> {
+            logger.log(Level.SEVERE, "Could not load messages, using the defaults", e);
+            return loadDefaultMessages();
+        });
+        return new Snapshot(config, languageFile, messages);
     }
     
-    private void loadMessages() {
-        String languageFile = config.getString("language.file", "en");
+    private YamlConfiguration loadMessages(String languageFile) throws IOException, InvalidConfigurationException {
         String fileName = "messages_" + languageFile + ".yml";
         
         File messagesFile = new File(plugin.getDataFolder(), fileName);
         
+        // Fallback to English if language file doesn't exist
+        String resourceName = hasResource(fileName) ? fileName : "messages_en.yml";
+        
         // Create messages file if it doesn't exist
         if (!messagesFile.exists()) {
-            try (InputStream inputStream = plugin.getResource(fileName)) {
+            try (InputStream inputStream = plugin.getResource(resourceName)) {
                 if (inputStream != null) {
                     Files.copy(inputStream, messagesFile.toPath());
-                } else {
-                    // Fallback to English if language file doesn't exist
-                    fileName = "messages_en.yml";
-                    try (InputStream fallbackStream = plugin.getResource(fileName)) {
-                        if (fallbackStream != null) {
-                            Files.copy(fallbackStream, messagesFile.toPath());
-                        }
-                    }
                 }
-            } catch (IOException e) {
-                logger.warning("Could not create messages file: " + e.getMessage());
-                return;
             }
         }
         
-        messages = YamlConfiguration.loadConfiguration(messagesFile);
+        YamlConfiguration messages = loadYaml(messagesFile, resourceName);
         logger.info("Messages loaded from " + fileName);
+        return messages;
+    }
+    
+    private Snapshot loadDefaultSnapshot() {
+        try {
+            return new Snapshot(loadYaml(null, "config.yml"), "en", CompletableFuture.completedFuture(loadDefaultMessages()));
+        } catch (IOException | InvalidConfigurationException e) {
+            // The bundled files are part of the jar, so this can only happen with a broken build
+            throw new IllegalStateException("Could not load bundled defaults", e);
+        }
+    }
+    
+    private YamlConfiguration loadDefaultMessages() {
+        try {
+            return loadYaml(null, "messages_en.yml");
+        } catch (IOException | InvalidConfigurationException e) {
+            throw new IllegalStateException("Could not load bundled defaults", e);
+        }
+    }
+    
+    /**
+     * Load the messages of a language other than the default one
+     * @param current The snapshot the messages will belong to
+     * @param language The language code
+     * @return The bundle, or <code>null</code> if there are no messages for this language
+     */
+    private MessageBundle loadBundle(Snapshot current, String language) throws IOException, InvalidConfigurationException {
+        String fileName = "messages_" + language + ".yml";
+        File messagesFile = new File(plugin.getDataFolder(), fileName);
+        boolean bundled = hasResource(fileName);
+        if (!bundled && !messagesFile.exists()) return null;
+        
+        // Missing keys fall back to English
+        YamlConfiguration messages = loadYaml(messagesFile, bundled ? fileName : "messages_en.yml");
+        return new MessageBundle(language, messages, current.minimessageEnabled, current.staticPlaceholders);
+    }
+    
+    private boolean hasResource(String name) throws IOException {
+        try (InputStream inputStream = plugin.getResource(name)) {
+            return inputStream != null;
+        }
+    }
+    
+    /**
+     * Load a YAML file, with the bundled version of it as defaults, so keys added in updates always have a value
+     * @param file The file to load, or <code>null</code> to only load the defaults
+     * @param resource The name of the bundled resource
+     * @return The loaded configuration
+     */
+    private YamlConfiguration loadYaml(File file, String resource) throws IOException, InvalidConfigurationException {
+        YamlConfiguration yaml = new YamlConfiguration();
+        try (InputStream defaultsStream = plugin.getResource(resource)) {
+            if (defaultsStream != null) {
+                try (Reader reader = new InputStreamReader(defaultsStream, StandardCharsets.UTF_8)) {
+                    yaml.setDefaults(YamlConfiguration.loadConfiguration(reader));
+                }
+                yaml.options().copyDefaults(true);
+            }
+        }
+        if (file != null && file.exists()) {
+            yaml.load(file);
+        }
+        return yaml;
     }
     
     public String getCommandName() {
-        return commandName;
+        return snapshot.commandName;
     }
     
     public List<String> getCommandAliases() {
-        return commandAliases;
+        return snapshot.commandAliases;
     }
     
     public boolean isMinimessageEnabled() {
-        return minimessageEnabled;
+        return snapshot.minimessageEnabled;
     }
     
     public String getMessage(String path) {
-        return messages.getString(path, "Message not found: " + path);
+        return snapshot.defaultBundle().getRawMessage(path);
     }
     
     public String getMessage(String path, String... placeholders) {
@@ -113,20 +223,27 @@ public class ConfigManager {
         return message;
     }
     
+    public MessageTemplate getMessageTemplate(String path) {
+        return snapshot.defaultBundle().getTemplate(path);
+    }
+    
     public Component getMessageComponent(String path) {
-        return getMessageComponent(path, new String[0]);
+        return getMessageTemplate(path).render();
     }
     
     public Component getMessageComponent(String path, String... placeholders) {
-        String message = getMessage(path, placeholders);
-        
-        if (minimessageEnabled) {
-            // Use real MiniMessage
-            return miniMessage.deserialize(message);
-        } else {
-            // Use legacy color codes
-            return legacySerializer.deserialize(message);
-        }
+        return getMessageTemplate(path).render(placeholders);
+    }
+    
+    /**
+     * Get a message in the language of the player that will receive it
+     * @param recipient The sender that will receive the message
+     * @param path The path of the message in the messages file
+     * @param placeholders Alternating placeholder keys and values
+     * @return The rendered message
+     */
+    public Component getMessageComponent(CommandSender recipient, String path, String... placeholders) {
+        return getBundle(recipient).getTemplate(path).render(placeholders);
     }
     
     // Legacy method for backward compatibility
@@ -136,7 +253,7 @@ public class ConfigManager {
     }
     
     public List<String> getMessageList(String path, String... placeholders) {
-        List<String> messageList = messages.getStringList(path);
+        List<String> messageList = snapshot.defaultBundle().getRawMessageList(path);
         List<String> result = new ArrayList<>();
         
         for (String message : messageList) {
@@ -153,41 +270,253 @@ public class ConfigManager {
     }
     
     public List<Component> getMessageComponentList(String path, String... placeholders) {
-        List<String> messages = getMessageList(path, placeholders);
-        List<Component> result = new ArrayList<>();
-        
-        for (String message : messages) {
-            if (minimessageEnabled) {
-                // Use real MiniMessage
-                result.add(miniMessage.deserialize(message));
-            } else {
-                // Use legacy color codes
-                result.add(legacySerializer.deserialize(message));
-            }
+        return renderAll(snapshot.defaultBundle().getTemplateList(path), placeholders);
+    }
+    
+    /**
+     * Get a list of messages in the language of the player that will receive them
+     * @param recipient The sender that will receive the messages
+     * @param path The path of the message list in the messages file
+     * @param placeholders Alternating placeholder keys and values
+     * @return The rendered messages
+     */
+    public List<Component> getMessageComponentList(CommandSender recipient, String path, String... placeholders) {
+        return renderAll(getBundle(recipient).getTemplateList(path), placeholders);
+    }
+    
+    private static List<Component> renderAll(List<MessageTemplate> templates, String... placeholders) {
+        List<Component> result = new ArrayList<>(templates.size());
+        
+        for (MessageTemplate template : templates) {
+            result.add(template.render(placeholders));
         }
         
         return result;
     }
     
+    /**
+     * Find the messages in the language of the recipient.
+     * Languages are loaded in the background the first time they're needed;
+     * until then, and for languages without a messages file, the default language is used.
+     * @param recipient The sender that will receive a message
+     * @return The bundle to take the message from
+     */
+    public MessageBundle getBundle(CommandSender recipient) {
+        Snapshot current = snapshot;
+        if (!current.perPlayerLanguage || !(recipient instanceof Player player)) return current.defaultBundle();
+        
+        String language = player.locale().getLanguage();
+        if (language.equals(current.defaultBundle().getLanguage())) return current.defaultBundle();
+        
+        MessageBundle bundle = current.localeBundles.get(language);
+        if (bundle != null) return bundle;
+        
+        current.requestBundle(language);
+        return current.defaultBundle();
+    }
+    
+    /**
+     * @return The compiled automatic visibility rules
+     */
+    public VisibilityRules getVisibilityRules() {
+        return snapshot.visibilityRules;
+    }
+    
+    /**
+     * @return The named groups of players
+     */
+    public VisibilityGroups getVisibilityGroups() {
+        return snapshot.visibilityGroups;
+    }
+    
+    /**
+     * @return The limits for visibility commands
+     */
+    public ToggleLimiter.Limits getToggleLimits() {
+        return snapshot.toggleLimits;
+    }
+    
+    /**
+     * @return The settings for syncing visibilities between servers, which are only read at startup
+     */
+    public VisibilitySync.Settings getSyncSettings() {
+        return snapshot.syncSettings;
+    }
+    
+    /**
+     * @return The settings for the audit log, which are only read at startup
+     */
+    public AuditLog.Settings getAuditSettings() {
+        return snapshot.auditSettings;
+    }
+    
+    public long getSaveInterval() {
+        return snapshot.saveInterval;
+    }
+    
+    /**
+     * @return How often the statistics are written to a file in seconds, or 0 if they shouldn't be written
+     */
+    public long getStatsFileInterval() {
+        return snapshot.statsFileInterval;
+    }
+    
     public boolean isDebugEnabled() {
-        return debugEnabled;
+        return snapshot.debugEnabled;
     }
     
+    public DebugTrace getDebugTrace() {
+        return debugTrace;
+    }
+    
+    // The fixed-arity overloads avoid allocating a varargs array when debug mode is off.
+    // Callers that need to box primitives or build strings should check isDebugEnabled() first.
+    
     public void debugLog(String message) {
-        if (debugEnabled) {
-            logger.info("[DEBUG] " + message);
+        if (snapshot.debugEnabled) {
+            trace(message, null);
+        }
+    }
+    
+    public void debugLog(String message, Object arg) {
+        if (snapshot.debugEnabled) {
+            trace(message, new Object[]{arg});
+        }
+    }
+    
+    public void debugLog(String message, Object arg1, Object arg2) {
+        if (snapshot.debugEnabled) {
+            trace(message, new Object[]{arg1, arg2});
+        }
+    }
+    
+    public void debugLog(String message, Object arg1, Object arg2, Object arg3) {
+        if (snapshot.debugEnabled) {
+            trace(message, new Object[]{arg1, arg2, arg3});
         }
     }
     
     public void debugLog(String message, Object... args) {
-        if (debugEnabled) {
-            logger.info("[DEBUG] " + String.format(message, args));
+        if (snapshot.debugEnabled) {
+            trace(message, args);
+        }
+    }
+    
+    private void trace(String message, Object[] args) {
+        debugTrace.record(message, args);
+        if (snapshot.debugConsole) {
+            logger.info("[DEBUG] " + (args == null ? message : String.format(message, args)));
         }
     }
     
-    public void reload() {
-        plugin.reloadConfig();
-        loadConfig();
-        loadMessages();
+    /**
+     * The settings and compiled messages of one load of the config files.
+     * Never modified after construction, so it can be read from any thread,
+     * except for the cache of other languages, which is only valid for this snapshot.
+     */
+    private final class Snapshot {
+        private final CompletableFuture<MessageBundle> defaultBundle;
+        private final Map<String, MessageBundle> localeBundles;
+        private final Set<String> loadingLanguages = ConcurrentHashMap.newKeySet();
+        private final Map<String, String> staticPlaceholders;
+        private final String commandName;
+        private final List<String> commandAliases;
+        private final boolean minimessageEnabled;
+        private final boolean perPlayerLanguage;
+        private final boolean debugEnabled;
+        private final boolean debugConsole;
+        private final long saveInterval;
+        private final long statsFileInterval;
+        private final VisibilityRules visibilityRules;
+        private final VisibilityGroups visibilityGroups;
+        private final ToggleLimiter.Limits toggleLimits;
+        private final VisibilitySync.Settings syncSettings;
+        private final AuditLog.Settings auditSettings;
+        
+        private Snapshot(FileConfiguration config, String language, CompletableFuture<? extends FileConfiguration> messages) {
+            // Load command settings
+            commandName = config.getString("command.name", "bmpc");
+            commandAliases = List.copyOf(config.getStringList("command.aliases"));
+            minimessageEnabled = config.getBoolean("language.minimessage", true);
+            perPlayerLanguage = config.getBoolean("language.per-player", true);
+            int cacheSize = Math.max(1, config.getInt("language.cache-size", 8));
+            
+            // Load plugin settings
+            debugEnabled = config.getBoolean("settings.debug", false);
+            debugConsole = config.getBoolean("settings.debug-console", false);
+            saveInterval = Math.max(1, config.getLong("settings.save-interval", 30));
+            statsFileInterval = Math.max(0, config.getLong("settings.stats-file-interval", 0));
+            visibilityRules = VisibilityRules.compile(config.getConfigurationSection("rules"));
+            visibilityGroups = VisibilityGroups.compile(config.getConfigurationSection("groups"));
+            if (visibilityGroups.hasTeams() && TaskScheduler.isFolia()) {
+                logger.warning("Folia has no scoreboard, so groups with a team will only have the players from their permission or list");
+            }
+            
+            // Load rate limits
+            toggleLimits = new ToggleLimiter.Limits(
+                    Math.max(1, config.getInt("rate-limit.burst", 5)),
+                    Math.max(0, config.getDouble("rate-limit.per-second", 2)),
+                    Math.max(1, config.getInt("rate-limit.bulk-burst", 3)),
+                    Math.max(0, config.getDouble("rate-limit.bulk-per-second", 0.2)),
+                    Math.max(0, config.getLong("rate-limit.debounce-ticks", 5)));
+            
+            // Load sync settings
+            syncSettings = new VisibilitySync.Settings(
+                    config.getBoolean("sync.enabled", false),
+                    config.getString("sync.transport", "plugin-messaging"),
+                    config.getString("sync.udp.bind", "127.0.0.1"),
+                    config.getInt("sync.udp.port", 25590),
+                    List.copyOf(config.getStringList("sync.udp.peers")));
+            
+            // Load audit log settings; files are memory-mapped when read, which is limited to 2 GiB
+            auditSettings = new AuditLog.Settings(
+                    config.getBoolean("audit.enabled", true),
+                    Math.clamp(config.getLong("audit.max-file-size", 16), 1, 1024) * 1024 * 1024,
+                    Math.max(1, config.getLong("audit.max-file-age", 24)) * 60 * 60 * 1000,
+                    Math.max(0, config.getInt("audit.max-files", 30)));
+            
+            staticPlaceholders = Map.of(
+                    "command", commandName,
+                    "version", plugin.getDescription().getVersion());
+            boolean minimessage = minimessageEnabled;
+            Map<String, String> placeholders = staticPlaceholders;
+            defaultBundle = messages.thenApply(loaded -> new MessageBundle(language, loaded, minimessage, placeholders));
+            
+            // Least recently used languages get evicted first
+            localeBundles = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, MessageBundle> eldest) {
+                    return size() > cacheSize;
+                }
+            });
+        }
+        
+        /**
+         * @return The messages of the default language, waiting for them if they are still being compiled
+         */
+        private MessageBundle defaultBundle() {
+            return defaultBundle.join();
+        }
+        
+        private void requestBundle(String language) {
+            if (!loadingLanguages.add(language)) return;
+            
+            ioExecutor.execute(() -> {
+                MessageBundle bundle = defaultBundle();
+                try {
+                    MessageBundle loaded = loadBundle(this, language);
+                    if (loaded != null) {
+                        bundle = loaded;
+                        debugLog("Loaded %d messages for language '%s'", loaded.size(), language);
+                    }
+                } catch (IOException | InvalidConfigurationException e) {
+                    logger.log(Level.WARNING, "Could not load messages for language '" + language + "'", e);
+                } finally {
+                    // Languages without messages also get cached, so they aren't looked up again
+                    localeBundles.put(language, bundle);
+                    loadingLanguages.remove(language);
+                }
+            });
+        }
     }
 }
@@ -0,0 +1,90 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size ring buffer of the most recent debug events.
+ * Events are stored with their format string and arguments, and only formatted when the buffer is dumped.
+ * Recording is lock-free, so it can be done from any thread.
+ */
+public class DebugTrace {
+	private static final int CAPACITY = 1024;
+	private static final int MASK = CAPACITY - 1;
+
+	private final AtomicReferenceArray<Event> events = new AtomicReferenceArray<>(CAPACITY);
+	private final AtomicLong nextIndex = new AtomicLong();
+
+	/**
+	 * Record an event, overwriting the oldest one if the buffer is full
+	 * @param format The message, in {@link String#format(String, Object...)} syntax
+	 * @param args The arguments for the message, or <code>null</code> if it has none
+	 */
+	public void record(String format, Object @Nullable [] args) {
+		long index = nextIndex.getAndIncrement();
+		events.set((int) (index & MASK), new Event(index, System.currentTimeMillis(), Thread.currentThread().getName(), format, args));
+	}
+
+	/**
+	 * @return The events that are currently in the buffer, oldest first
+	 */
+	public List<Event> getEvents() {
+		long end = nextIndex.get();
+		long start = Math.max(0, end - CAPACITY);
+		List<Event> result = new ArrayList<>((int) (end - start));
+		for (long index = start; index < end; index++) {
+			Event event = events.get((int) (index & MASK));
+			// Skip slots that have already been overwritten by a newer event, or not written yet
+			if (event != null && event.index() == index) result.add(event);
+		}
+		return result;
+	}
+
+	/**
+	 * Write all events in the buffer to a file. Does file I/O, so don't call this on a tick thread.
+	 * @param file The file to write to
+	 * @return The number of events that were written
+	 */
+	public int writeTo(Path file) throws IOException {
+		List<Event> snapshot = getEvents();
+		Files.createDirectories(file.getParent());
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			for (Event event : snapshot) {
+				writer.write(event.toString());
+				writer.newLine();
+			}
+		}
+		return snapshot.size();
+	}
+
+	/**
+	 * @param index The sequence number of the event
+	 * @param time When the event happened, in milliseconds since the epoch
+	 * @param thread The name of the thread the event happened on
+	 * @param format The message, in {@link String#format(String, Object...)} syntax
+	 * @param args The arguments for the message, or <code>null</code> if it has none
+	 */
+	public record Event(long index, long time, String thread, String format, Object @Nullable [] args) {
+		/**
+		 * @return The formatted message
+		 */
+		public String message() {
+			return args == null ? format : String.format(format, args);
+		}
+
+		@Override
+		public String toString() {
+			return Instant.ofEpochMilli(time) + " [" + thread + "] " + message();
+		}
+	}
+}
@@ -0,0 +1,319 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import de.bluecolored.bluemap.api.BlueMapAPI;
+import de.bluecolored.bluemap.api.WebApp;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.scoreboard.Scoreboard;
+import org.bukkit.scoreboard.ScoreboardManager;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Hides and shows the {@link VisibilityGroups} from the config as a whole,
+ * including players that join a hidden group later.
+ * <p>
+ * Keeps an index from each group to its online members, and from each online player to their groups,
+ * so a group can be changed in a single batch, and checking if a player is in a hidden group doesn't go through every group.
+ * The index is updated when players join or quit, when LuckPerms recalculates a player's permissions,
+ * and every few seconds for changes to teams and other permission plugins, because Bukkit has no events for those. All changes to the index happen on the global region.
+ * <p>
+ * Like the rule engine, only players that a group hid are shown again, and players that were already hidden are left alone.
+ * The hidden groups and the players they hid are saved as a small YAML file, so players that were online when the server stopped
+ * can still be shown again when their group is.
+ */
+public class GroupVisibility implements Listener {
+	/** How often teams and permissions are checked again */
+	public static final long REFRESH_INTERVAL_SECONDS = 5;
+
+	private final BlueMapPlayerControl plugin;
+	private final Path file;
+	/** Group name to its online members */
+	private final Map<String, Set<UUID>> members = new ConcurrentHashMap<>();
+	/** Online player to the names of their groups */
+	private final Map<UUID, Set<String>> memberships = new ConcurrentHashMap<>();
+	private final Set<String> hiddenGroups = ConcurrentHashMap.newKeySet();
+	/** Players that are hidden because of a group, and should be shown again once none of their groups are hidden */
+	private final Set<UUID> hiddenByGroups = ConcurrentHashMap.newKeySet();
+	/** Whether the file was read, or there was none; until then, it isn't written */
+	private volatile boolean loaded;
+
+	public GroupVisibility(BlueMapPlayerControl plugin, Path file) {
+		this.plugin = plugin;
+		this.file = file;
+	}
+
+	/**
+	 * Read the hidden groups, and the players they hid, from disk. Should only be called during startup.
+	 * Nothing is written until this has succeeded, so a file that couldn't be read isn't replaced.
+	 */
+	public void load() {
+		if (!Files.exists(file)) {
+			loaded = true;
+			return;
+		}
+
+		try {
+			YamlConfiguration yaml = new YamlConfiguration();
+			yaml.loadFromString(Files.readString(file, StandardCharsets.UTF_8));
+			hiddenGroups.addAll(yaml.getStringList("hidden"));
+			for (String uuid : yaml.getStringList("hidden-players")) {
+				hiddenByGroups.add(UUID.fromString(uuid));
+			}
+			loaded = true;
+		} catch (IOException | InvalidConfigurationException | IllegalArgumentException e) {
+			plugin.getLogger().log(Level.WARNING, "Could not load " + file.getFileName() + ", so it won't be written until the next start", e);
+		}
+	}
+
+	/**
+	 * @param group The name of a group
+	 * @return Whether the group is hidden
+	 */
+	public boolean isHidden(String group) {
+		return hiddenGroups.contains(group);
+	}
+
+	/**
+	 * @param group The name of a group
+	 * @param player The player's UUID
+	 * @return Whether the player is online and in the group
+	 */
+	public boolean isMember(String group, UUID player) {
+		Set<String> groups = memberships.get(player);
+		return groups != null && groups.contains(group);
+	}
+
+	/**
+	 * @param group The name of a group
+	 * @return The online members of the group
+	 */
+	public Set<UUID> getMembers(String group) {
+		Set<UUID> groupMembers = members.get(group);
+		return groupMembers == null ? Collections.emptySet() : Collections.unmodifiableSet(groupMembers);
+	}
+
+	/**
+	 * @param player The player's UUID
+	 * @return Whether the player is in any hidden group
+	 */
+	public boolean isInHiddenGroup(UUID player) {
+		if (hiddenGroups.isEmpty()) return false;
+		Set<String> groups = memberships.get(player);
+		if (groups == null) return false;
+		for (String group : groups) {
+			if (hiddenGroups.contains(group)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Hide or show a group, and apply it to its online members. Must be called on the global region.
+	 * @param webApp The BlueMap web app
+	 * @param group The name of the group
+	 * @param hidden Whether the group should be hidden
+	 * @return How many players were hidden or shown
+	 */
+	public int setHidden(WebApp webApp, String group, boolean hidden) {
+		boolean changed = hidden ? hiddenGroups.add(group) : hiddenGroups.remove(group);
+		if (changed) plugin.getTaskScheduler().runAsync(this::save);
+		return apply(webApp, getMembers(group));
+	}
+
+	/**
+	 * Look up the groups of every online player again, for when teams or permissions may have changed,
+	 * and apply the groups to the players whose groups did change. Must be called on the global region.
+	 */
+	public void refreshAll() {
+		refresh(false);
+	}
+
+	/**
+	 * Look up the groups of every online player again, and apply the groups to all of them,
+	 * for when the groups or BlueMap have been (re)loaded. Must be called on the global region.
+	 */
+	public void evaluateAll() {
+		refresh(true);
+	}
+
+	private void refresh(boolean applyToAll) {
+		VisibilityGroups groups = plugin.getConfigManager().getVisibilityGroups();
+		if (groups.isEmpty() && memberships.isEmpty() && hiddenByGroups.isEmpty()) return;
+
+		Scoreboard scoreboard = getMainScoreboard();
+		List<UUID> toApply = new ArrayList<>();
+		for (Player player : Bukkit.getOnlinePlayers()) {
+			boolean changed = update(player.getUniqueId(), groups.getGroups(player, scoreboard));
+			if (changed || applyToAll) toApply.add(player.getUniqueId());
+		}
+		if (toApply.isEmpty()) return;
+
+		BlueMapAPI.getInstance().ifPresent(api -> plugin.getAuditLog().runAs(AuditLog.Cause.GROUPS, () -> apply(api.getWebApp(), toApply)));
+	}
+
+	/**
+	 * Look up the groups of one player again, and apply them if they changed,
+	 * for when their permissions changed. Can be called from any thread.
+	 * @param uuid The player's UUID
+	 */
+	public void refresh(UUID uuid) {
+		plugin.getTaskScheduler().runGlobal(() -> {
+			Player player = Bukkit.getPlayer(uuid);
+			if (player != null) refresh(player, false);
+		});
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerJoin(PlayerJoinEvent event) {
+		Player player = event.getPlayer();
+		plugin.getTaskScheduler().runGlobal(() -> {
+			if (player.isOnline()) refresh(player, true);
+		});
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerQuit(PlayerQuitEvent event) {
+		UUID uuid = event.getPlayer().getUniqueId();
+		plugin.getTaskScheduler().runGlobal(() -> {
+			// They may have joined again in the meantime
+			if (Bukkit.getPlayer(uuid) != null) return;
+			update(uuid, Collections.emptySet());
+
+			// Checked again when they join, so they don't stay hidden if the group is shown in the meantime
+			if (!hiddenByGroups.remove(uuid)) return;
+			plugin.getTaskScheduler().runAsync(this::save);
+			BlueMapAPI.getInstance().ifPresent(api -> plugin.getAuditLog().runAs(AuditLog.Cause.GROUPS,
+					() -> plugin.getVisibilityManager().setVisibility(api.getWebApp(), uuid, true)));
+		});
+	}
+
+	/**
+	 * Update the index for one player, and apply their groups. Must be called on the global region.
+	 * @param applyAlways Whether to apply the groups even if they didn't change
+	 */
+	private void refresh(Player player, boolean applyAlways) {
+		VisibilityGroups groups = plugin.getConfigManager().getVisibilityGroups();
+		if (groups.isEmpty() && !memberships.containsKey(player.getUniqueId())) return;
+		boolean changed = update(player.getUniqueId(), groups.getGroups(player, getMainScoreboard()));
+		if (!changed && !applyAlways) return;
+
+		Optional<BlueMapAPI> api = BlueMapAPI.getInstance();
+		// Everyone is checked again once BlueMap has enabled and the stored visibilities are loaded
+		if (api.isEmpty() || !plugin.isReady()) return;
+		plugin.getAuditLog().runAs(AuditLog.Cause.GROUPS, () -> apply(api.get().getWebApp(), List.of(player.getUniqueId())));
+	}
+
+	/**
+	 * Write the hidden groups, and the players they hid, to disk
+	 */
+	public synchronized void save() {
+		// Writing what is in memory would lose what is in a file that couldn't be read
+		if (!loaded) return;
+
+		YamlConfiguration yaml = new YamlConfiguration();
+		yaml.set("hidden", new ArrayList<>(hiddenGroups));
+		List<String> hiddenPlayers = new ArrayList<>();
+		for (UUID uuid : hiddenByGroups) {
+			hiddenPlayers.add(uuid.toString());
+		}
+		yaml.set("hidden-players", hiddenPlayers);
+
+		try {
+			Files.createDirectories(file.getParent());
+			Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+			Files.writeString(temp, yaml.saveToString(), StandardCharsets.UTF_8);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			plugin.getLogger().log(Level.WARNING, "Could not save " + file.getFileName(), e);
+		}
+	}
+
+	/**
+	 * Update the index with the groups a player is in now
+	 * @return Whether the player's groups changed
+	 */
+	private boolean update(UUID player, Set<String> groups) {
+		Set<String> previous = groups.isEmpty() ? memberships.remove(player) : memberships.put(player, Set.copyOf(groups));
+		if (previous == null) previous = Collections.emptySet();
+		if (previous.equals(groups)) return false;
+
+		for (String group : previous) {
+			if (groups.contains(group)) continue;
+			members.computeIfPresent(group, (name, groupMembers) -> {
+				groupMembers.remove(player);
+				return groupMembers.isEmpty() ? null : groupMembers;
+			});
+		}
+		for (String group : groups) {
+			if (previous.contains(group)) continue;
+			members.computeIfAbsent(group, name -> ConcurrentHashMap.newKeySet()).add(player);
+		}
+		return true;
+	}
+
+	/**
+	 * Hide the players that are in a hidden group, and show the ones that a group hid but aren't in one anymore,
+	 * as one batch for each
+	 * @return How many players were hidden or shown
+	 */
+	private int apply(WebApp webApp, Collection<UUID> players) {
+		VisibilityManager visibilityManager = plugin.getVisibilityManager();
+		List<UUID> toHide = new ArrayList<>();
+		List<UUID> toShow = new ArrayList<>();
+		for (UUID player : players) {
+			if (isInHiddenGroup(player)) {
+				if (!hiddenByGroups.contains(player) && visibilityManager.getVisibility(webApp, player)) toHide.add(player);
+			} else if (hiddenByGroups.contains(player)) {
+				toShow.add(player);
+			}
+		}
+
+		hiddenByGroups.addAll(toHide);
+		toShow.forEach(hiddenByGroups::remove);
+		if (!toHide.isEmpty() || !toShow.isEmpty()) plugin.getTaskScheduler().runAsync(this::save);
+		if (!toHide.isEmpty()) visibilityManager.setVisibility(webApp, toHide, false);
+		if (!toShow.isEmpty()) visibilityManager.setVisibility(webApp, toShow, true);
+
+		int changed = toHide.size() + toShow.size();
+		plugin.getStats().recordBatch(Stats.Batch.GROUP, changed);
+		if (plugin.getConfigManager().isDebugEnabled()) {
+			plugin.getConfigManager().debugLog("Groups hid %d players and showed %d players", toHide.size(), toShow.size());
+		}
+		return changed;
+	}
+
+	/**
+	 * @return The main scoreboard, or <code>null</code> if it isn't available, like before the worlds have loaded
+	 */
+	private static @Nullable Scoreboard getMainScoreboard() {
+		try {
+			ScoreboardManager manager = Bukkit.getScoreboardManager();
+			return manager == null ? null : manager.getMainScoreboard();
+		} catch (UnsupportedOperationException e) {
+			// Folia doesn't support scoreboards
+			return null;
+		}
+	}
+}
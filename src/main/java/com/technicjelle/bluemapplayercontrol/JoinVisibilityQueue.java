@@ -0,0 +1,89 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import de.bluecolored.bluemap.api.BlueMapAPI;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handles joining players a little while after they joined, instead of during the login event,
+ * when permission plugins may not even have loaded the player's data yet.
+ * <p>
+ * Permissions are resolved on the player's own thread, then the resulting visibility changes
+ * are collected and applied in batches on the global region, so a login storm only causes a few BlueMap updates.
+ */
+public class JoinVisibilityQueue {
+	/** How long to wait after a join before looking at the player's permissions */
+	private static final long RESOLVE_DELAY_TICKS = 20;
+	/** How long to collect resolved players before applying them as one batch */
+	private static final long DRAIN_DELAY_TICKS = 10;
+
+	private final BlueMapPlayerControl plugin;
+	private final Queue<UUID> pending = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+	public JoinVisibilityQueue(BlueMapPlayerControl plugin) {
+		this.plugin = plugin;
+	}
+
+	/**
+	 * Queue a player that just joined. If the stored data is still loading, the delay starts once it is done.
+	 * @param player The player
+	 */
+	public void add(Player player) {
+		plugin.whenReady(() -> plugin.getTaskScheduler().runForEntity(player, () -> resolve(player), RESOLVE_DELAY_TICKS));
+	}
+
+	private void resolve(Player player) {
+		if (!player.isOnline()) return;
+
+		long start = System.nanoTime();
+		// A visibility that was set while the player was offline takes precedence over the default
+		Boolean preset = plugin.getVisibilityPresets().take(player.getUniqueId());
+		if (preset != null) {
+			BlueMapAPI.getInstance().ifPresent(api -> plugin.getAuditLog().runAs(AuditLog.Cause.JOIN,
+					() -> plugin.getVisibilityManager().setVisibility(api.getWebApp(), player.getUniqueId(), preset)));
+		} else if (!plugin.getPermissionCache().hasVisibilityControl(player) && !plugin.getConfigManager().getVisibilityRules().shouldHide(player)
+				&& !plugin.getGroupVisibility().isInHiddenGroup(player.getUniqueId())) {
+			// If player has permission, they may control their own visibility, so leave it alone.
+			// Players that a rule or a hidden group hides are left to those.
+			pending.add(player.getUniqueId());
+			if (drainScheduled.compareAndSet(false, true)) {
+				plugin.getTaskScheduler().runGlobal(this::drain, DRAIN_DELAY_TICKS);
+			}
+		}
+		plugin.getStats().record(Stats.Operation.LOGIN, start);
+	}
+
+	private void drain() {
+		// Reset first, so players that join while draining schedule a new batch
+		drainScheduled.set(false);
+
+		Optional<BlueMapAPI> api = BlueMapAPI.getInstance();
+		if (api.isEmpty()) {
+			// Stored visibilities get restored when BlueMap enables
+			pending.clear();
+			return;
+		}
+
+		List<UUID> toShow = new ArrayList<>();
+		UUID player;
+		GroupVisibility groupVisibility = plugin.getGroupVisibility();
+		while ((player = pending.poll()) != null) {
+			// Their groups may have been looked up since they were queued
+			if (!groupVisibility.isInHiddenGroup(player)) toShow.add(player);
+		}
+
+		plugin.getAuditLog().runAs(AuditLog.Cause.JOIN, () -> plugin.getVisibilityManager().setVisibility(api.get().getWebApp(), toShow, true));
+		plugin.getStats().recordBatch(Stats.Batch.JOIN, toShow.size());
+		if (plugin.getConfigManager().isDebugEnabled()) {
+			plugin.getConfigManager().debugLog("%d joined players had no visibility control permission and were made visible", toShow.size());
+		}
+	}
+}
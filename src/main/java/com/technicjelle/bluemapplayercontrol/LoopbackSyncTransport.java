@@ -0,0 +1,50 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Connects {@link VisibilitySync}s in the same process, for trying out syncing without a network.
+ * Messages are delivered right away, on the thread that sends them.
+ */
+public class LoopbackSyncTransport implements SyncTransport {
+	private final Hub hub;
+	private volatile @Nullable Receiver receiver;
+
+	/**
+	 * @param hub The hub that connects this transport to the others
+	 */
+	public LoopbackSyncTransport(Hub hub) {
+		this.hub = hub;
+	}
+
+	@Override
+	public void start(Receiver receiver) {
+		this.receiver = receiver;
+		hub.transports.add(this);
+		receiver.onConnected();
+	}
+
+	@Override
+	public void send(byte[] message) {
+		for (LoopbackSyncTransport transport : hub.transports) {
+			Receiver other = transport.receiver;
+			if (transport != this && other != null) other.receive(message.clone());
+		}
+	}
+
+	@Override
+	public void close() {
+		hub.transports.remove(this);
+		receiver = null;
+	}
+
+	/**
+	 * The transports that can reach each other
+	 */
+	public static final class Hub {
+		private final List<LoopbackSyncTransport> transports = new CopyOnWriteArrayList<>();
+	}
+}
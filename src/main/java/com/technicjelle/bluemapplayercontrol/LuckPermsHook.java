@@ -0,0 +1,40 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import net.luckperms.api.LuckPerms;
+import net.luckperms.api.LuckPermsProvider;
+import net.luckperms.api.event.EventSubscription;
+import net.luckperms.api.event.user.UserDataRecalculateEvent;
+
+import java.util.UUID;
+
+/**
+ * Tells the {@link PermissionCache} and the {@link GroupVisibility} when LuckPerms has recalculated a player's permissions,
+ * like when they, or a group they are in, were given or lost a permission.
+ * <p>
+ * LuckPerms is optional, so this class must only be loaded when LuckPerms is enabled.
+ */
+class LuckPermsHook {
+	private final EventSubscription<UserDataRecalculateEvent> subscription;
+
+	/**
+	 * @param plugin The plugin to subscribe to the events with, and to get the groups from
+	 * @param permissionCache The cache to invalidate
+	 */
+	LuckPermsHook(BlueMapPlayerControl plugin, PermissionCache permissionCache) {
+		LuckPerms luckPerms = LuckPermsProvider.get();
+		subscription = luckPerms.getEventBus().subscribe(plugin, UserDataRecalculateEvent.class, event -> {
+			UUID player = event.getUser().getUniqueId();
+			permissionCache.invalidate(player);
+			// Groups with a permission don't have to wait for the next refresh
+			GroupVisibility groupVisibility = plugin.getGroupVisibility();
+			if (groupVisibility != null) groupVisibility.refresh(player);
+		});
+	}
+
+	/**
+	 * Stop listening to LuckPerms
+	 */
+	void close() {
+		subscription.close();
+	}
+}
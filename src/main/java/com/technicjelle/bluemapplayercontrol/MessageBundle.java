@@ -0,0 +1,142 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.minimessage.MiniMessage;
+import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * All messages of one language, compiled into {@link MessageTemplate}s
+ */
+public final class MessageBundle {
+	private static final Pattern PLACEHOLDER_PATTERN = Pattern.compile("\\{([a-zA-Z0-9_]+)}");
+
+	private final String language;
+	private final FileConfiguration messages;
+	private final boolean minimessageEnabled;
+	private final Map<String, MessageTemplate> templates;
+	private final Map<String, List<MessageTemplate>> templateLists;
+
+	/**
+	 * Parse every message once into a {@link MessageTemplate}.
+	 * Placeholders that are known at load time (like {command} and {version}) are resolved here,
+	 * the rest are left as slots to be filled in when the message is sent.
+	 * @param language The language code of the messages
+	 * @param messages The loaded messages file
+	 * @param minimessageEnabled Whether the messages use MiniMessage, or legacy colour codes
+	 * @param staticPlaceholders Placeholders that are the same for every message that is sent
+	 */
+	MessageBundle(String language, FileConfiguration messages, boolean minimessageEnabled, Map<String, String> staticPlaceholders) {
+		this.language = language;
+		this.messages = messages;
+		this.minimessageEnabled = minimessageEnabled;
+
+		Map<String, MessageTemplate> templates = new HashMap<>();
+		Map<String, List<MessageTemplate>> templateLists = new HashMap<>();
+		for (String path : messages.getKeys(true)) {
+			if (messages.isList(path)) {
+				List<MessageTemplate> list = new ArrayList<>();
+				for (String message : messages.getStringList(path)) {
+					list.add(compile(message, minimessageEnabled, staticPlaceholders));
+				}
+				templateLists.put(path, Collections.unmodifiableList(list));
+			} else if (messages.isString(path)) {
+				templates.put(path, compile(messages.getString(path), minimessageEnabled, staticPlaceholders));
+			}
+		}
+		this.templates = Collections.unmodifiableMap(templates);
+		this.templateLists = Collections.unmodifiableMap(templateLists);
+	}
+
+	private static MessageTemplate compile(String message, boolean minimessageEnabled, Map<String, String> staticPlaceholders) {
+		Set<String> slots = new LinkedHashSet<>();
+		StringBuilder resolved = new StringBuilder(message.length());
+		Matcher matcher = PLACEHOLDER_PATTERN.matcher(message);
+		while (matcher.find()) {
+			String value = staticPlaceholders.get(matcher.group(1));
+			if (value != null) {
+				matcher.appendReplacement(resolved, Matcher.quoteReplacement(value));
+			} else {
+				slots.add(matcher.group(1));
+				matcher.appendReplacement(resolved, Matcher.quoteReplacement(matcher.group()));
+			}
+		}
+		matcher.appendTail(resolved);
+
+		return new MessageTemplate(deserialize(resolved.toString(), minimessageEnabled), slots.toArray(new String[0]));
+	}
+
+	private static Component deserialize(String message, boolean minimessageEnabled) {
+		if (minimessageEnabled) {
+			// Use real MiniMessage
+			return MiniMessage.miniMessage().deserialize(message);
+		} else {
+			// Use legacy color codes
+			return LegacyComponentSerializer.legacySection().deserialize(message);
+		}
+	}
+
+	/**
+	 * @return The language code of the messages in this bundle
+	 */
+	public String getLanguage() {
+		return language;
+	}
+
+	/**
+	 * @param path The path of the message in the messages file
+	 * @return The raw, uncompiled message
+	 */
+	public String getRawMessage(String path) {
+		return messages.getString(path, "Message not found: " + path);
+	}
+
+	/**
+	 * @param path The path of the message list in the messages file
+	 * @return The raw, uncompiled messages
+	 */
+	public List<String> getRawMessageList(String path) {
+		return messages.getStringList(path);
+	}
+
+	/**
+	 * @param path The path of the message in the messages file
+	 * @return The compiled message
+	 */
+	public MessageTemplate getTemplate(String path) {
+		MessageTemplate template = templates.get(path);
+		if (template == null) {
+			template = compile("Message not found: " + path, minimessageEnabled, Collections.emptyMap());
+		}
+		return template;
+	}
+
+	/**
+	 * @param path The path of the message list in the messages file
+	 * @return The compiled messages, or an empty list if there is no such list
+	 */
+	public List<MessageTemplate> getTemplateList(String path) {
+		return templateLists.getOrDefault(path, Collections.emptyList());
+	}
+
+	/**
+	 * @return The number of compiled messages, including the ones in lists
+	 */
+	public int size() {
+		int size = templates.size();
+		for (List<MessageTemplate> list : templateLists.values()) {
+			size += list.size();
+		}
+		return size;
+	}
+}
@@ -0,0 +1,79 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.ComponentLike;
+import net.kyori.adventure.text.TextComponent;
+import net.kyori.adventure.text.TextReplacementConfig;
+import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
+
+import java.util.StringJoiner;
+import java.util.regex.Pattern;
+
+/**
+ * A message that has been parsed once into a {@link Component}.
+ * Dynamic placeholders like <code>{player}</code> are kept as slots in the parsed component,
+ * so rendering only fills in the slots and never parses the markup again.
+ * The replacement that finds the slots is also built once, and fills all of them in a single pass.
+ */
+public final class MessageTemplate {
+	private static final LegacyComponentSerializer SLOT_SERIALIZER = LegacyComponentSerializer.legacySection();
+	/** The placeholders of the render in progress on this thread, for the replacement to look the values up in */
+	private static final ThreadLocal<String[]> PLACEHOLDERS = new ThreadLocal<>();
+
+	private final Component component;
+	private final String[] slots;
+	private final TextReplacementConfig replacement;
+
+	MessageTemplate(Component component, String[] slots) {
+		this.component = component;
+		this.slots = slots;
+		if (slots.length == 0) {
+			this.replacement = null;
+			return;
+		}
+
+		StringJoiner names = new StringJoiner("|", "\\{(", ")\\}");
+		for (String slot : slots) {
+			names.add(Pattern.quote(slot));
+		}
+		this.replacement = TextReplacementConfig.builder()
+				.match(Pattern.compile(names.toString()))
+				.replacement((match, original) -> value(match.group(1), original))
+				.build();
+	}
+
+	/**
+	 * Fill the slots of this template
+	 * @param placeholders Alternating placeholder keys and values, like <code>"player", "Steve"</code>
+	 * @return The rendered message
+	 */
+	public Component render(String... placeholders) {
+		if (slots.length == 0) return component;
+
+		PLACEHOLDERS.set(placeholders);
+		try {
+			return component.replaceText(replacement);
+		} finally {
+			PLACEHOLDERS.remove();
+		}
+	}
+
+	private static ComponentLike value(String slot, TextComponent.Builder original) {
+		String[] placeholders = PLACEHOLDERS.get();
+		for (int i = 0; i + 1 < placeholders.length; i += 2) {
+			if (slot.equals(placeholders[i])) {
+				// Values may be display names, which carry legacy colour codes
+				return SLOT_SERIALIZER.deserialize(placeholders[i + 1]);
+			}
+		}
+		// Slots that weren't given a value are kept as they are
+		return original;
+	}
+
+	/**
+	 * @return Whether this template has any slots that need to be filled in
+	 */
+	public boolean hasSlots() {
+		return slots.length != 0;
+	}
+}
@@ -0,0 +1,155 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the plugin's permissions of every online player as a bitmask, so checking one is a single bit test
+ * instead of a walk through the server's (or a permission plugin's) permission tree.
+ * <p>
+ * A player's mask is computed the first time it is needed, and forgotten when they join, quit or change worlds,
+ * and when they are opped or deopped, which is checked along with every lookup because Bukkit has no event for it.
+ * Permission plugins can invalidate players whenever their permissions change, like {@link LuckPermsHook} does.
+ * <p>
+ * Other senders, like the console, are asked directly.
+ */
+public class PermissionCache implements Listener {
+	/** Set in a mask if the player was an operator when it was computed */
+	private static final int OP_BIT = 1 << 31;
+	/** Any of these lets a player control visibilities */
+	private static final int VISIBILITY_CONTROL = Permission.SELF.bit | Permission.SELF_TOGGLE.bit | Permission.SELF_SHOW.bit | Permission.SELF_HIDE.bit
+			| Permission.OTHERS.bit | Permission.OTHERS_TOGGLE.bit | Permission.OTHERS_SHOW.bit | Permission.OTHERS_HIDE.bit;
+
+	private final Map<UUID, Integer> masks = new ConcurrentHashMap<>();
+
+	/**
+	 * @param sender The sender to check
+	 * @param permission The permission to check
+	 * @return Whether the sender has the permission
+	 */
+	public boolean has(CommandSender sender, Permission permission) {
+		if (!(sender instanceof Player player)) return sender.hasPermission(permission.node);
+		return (getMask(player) & permission.bit) != 0;
+	}
+
+	/**
+	 * @param player The player to check
+	 * @return Whether the player has any permission to control visibilities, of themselves or others
+	 */
+	public boolean hasVisibilityControl(Player player) {
+		return (getMask(player) & VISIBILITY_CONTROL) != 0;
+	}
+
+	/**
+	 * Get all permissions of a sender at once, for checking many of them in a row
+	 * @param sender The sender to check
+	 * @return The permissions, to test with {@link Permission#isIn(int)}
+	 */
+	public int getMask(CommandSender sender) {
+		if (!(sender instanceof Player player)) return compute(sender);
+
+		Integer mask = masks.get(player.getUniqueId());
+		if (mask == null || ((mask & OP_BIT) != 0) != player.isOp()) {
+			mask = compute(player);
+			masks.put(player.getUniqueId(), mask);
+		}
+		return mask;
+	}
+
+	/**
+	 * Forget the permissions of a player, for when they have changed
+	 * @param player The player's UUID
+	 */
+	public void invalidate(UUID player) {
+		masks.remove(player);
+	}
+
+	/**
+	 * Forget the permissions of all players
+	 */
+	public void invalidateAll() {
+		masks.clear();
+	}
+
+	@EventHandler(priority = EventPriority.LOWEST)
+	public void onPlayerJoin(PlayerJoinEvent event) {
+		// Permission plugins may have loaded different permissions than last time
+		invalidate(event.getPlayer().getUniqueId());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerQuit(PlayerQuitEvent event) {
+		invalidate(event.getPlayer().getUniqueId());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+		// Some permission plugins give different permissions per world
+		invalidate(event.getPlayer().getUniqueId());
+	}
+
+	private static int compute(CommandSender sender) {
+		int mask = sender.isOp() ? OP_BIT : 0;
+		for (Permission permission : Permission.VALUES) {
+			if (sender.hasPermission(permission.node)) mask |= permission.bit;
+		}
+		return mask;
+	}
+
+	/**
+	 * The permissions that the plugin checks
+	 */
+	public enum Permission {
+		USE("bmpc"),
+		SELF("bmpc.self"),
+		SELF_TOGGLE("bmpc.self.toggle"),
+		SELF_SHOW("bmpc.self.show"),
+		SELF_HIDE("bmpc.self.hide"),
+		OTHERS("bmpc.others"),
+		OTHERS_TOGGLE("bmpc.others.toggle"),
+		OTHERS_SHOW("bmpc.others.show"),
+		OTHERS_HIDE("bmpc.others.hide"),
+		RELOAD("bmpc.reload"),
+		DEBUG("bmpc.debug"),
+		STATS("bmpc.stats"),
+		HISTORY("bmpc.history"),
+		GROUPS("bmpc.groups");
+
+		private static final Permission[] VALUES = values();
+
+		private final String node;
+		private final int bit;
+
+		Permission(String node) {
+			this.node = node;
+			this.bit = 1 << ordinal();
+		}
+
+		public String getNode() {
+			return node;
+		}
+
+		/**
+		 * @param mask A mask from {@link #getMask(CommandSender)}
+		 * @return Whether this permission is in the mask
+		 */
+		public boolean isIn(int mask) {
+			return (mask & bit) != 0;
+		}
+
+		@Override
+		public String toString() {
+			return node;
+		}
+	}
+}
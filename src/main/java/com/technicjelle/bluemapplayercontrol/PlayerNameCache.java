@@ -0,0 +1,109 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the UUIDs of players by name, including players that are offline, without ever blocking the calling thread.
+ * <p>
+ * Names are looked up in a bounded cache first, which is filled from the server's <code>usercache.json</code>
+ * and with every player that joins. Names that aren't in there are looked up on the I/O executor,
+ * where the server may have to ask Mojang.
+ */
+public class PlayerNameCache implements Listener {
+	private static final int CAPACITY = 4096;
+
+	private final Executor ioExecutor;
+	private final Logger logger;
+	/** Lowercase name to UUID, least recently used first */
+	private final Map<String, UUID> uuids = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, UUID> eldest) {
+			return size() > CAPACITY;
+		}
+	});
+
+	public PlayerNameCache(Executor ioExecutor, Logger logger) {
+		this.ioExecutor = ioExecutor;
+		this.logger = logger;
+	}
+
+	/**
+	 * Fill the cache from the server's <code>usercache.json</code>, in the background
+	 */
+	public void loadUserCache() {
+		Path file = Bukkit.getWorldContainer().toPath().resolve("usercache.json");
+		ioExecutor.execute(() -> {
+			if (!Files.exists(file)) return;
+
+			try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				int count = 0;
+				for (JsonElement element : JsonParser.parseReader(reader).getAsJsonArray()) {
+					JsonObject entry = element.getAsJsonObject();
+					// Players that joined recently are on top; don't let older entries push them out
+					uuids.putIfAbsent(entry.get("name").getAsString().toLowerCase(Locale.ROOT), UUID.fromString(entry.get("uuid").getAsString()));
+					if (++count >= CAPACITY) break;
+				}
+			} catch (IOException | JsonParseException | IllegalStateException | IllegalArgumentException | NullPointerException e) {
+				logger.log(Level.WARNING, "Could not read usercache.json", e);
+			}
+		});
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerJoin(PlayerJoinEvent event) {
+		Player player = event.getPlayer();
+		uuids.put(player.getName().toLowerCase(Locale.ROOT), player.getUniqueId());
+	}
+
+	/**
+	 * Find the UUID of a player by name
+	 * @param name The name of the player, ignoring case
+	 * @return A future with the UUID, or <code>null</code> if there is no player with that name.
+	 * Completes right away if the name is cached, and on an async thread otherwise.
+	 */
+	public CompletableFuture<@Nullable UUID> resolve(String name) {
+		String key = name.toLowerCase(Locale.ROOT);
+		UUID cached = uuids.get(key);
+		if (cached != null) return CompletableFuture.completedFuture(cached);
+
+		return CompletableFuture.supplyAsync(() -> {
+			OfflinePlayer player = Bukkit.getOfflinePlayerIfCached(name);
+			if (player == null) {
+				// May ask Mojang, which is why this runs on the I/O executor
+				player = Bukkit.getOfflinePlayer(name);
+				// On online-mode servers, names without an account get a made-up offline UUID, which is always version 3
+				if (Bukkit.getOnlineMode() && !player.hasPlayedBefore() && player.getUniqueId().version() == 3) return null;
+			}
+
+			UUID uuid = player.getUniqueId();
+			uuids.put(key, uuid);
+			return uuid;
+		}, ioExecutor);
+	}
+}
@@ -0,0 +1,108 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.messaging.PluginMessageListener;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+
+/**
+ * Sends messages to the other servers through the proxy, with the <code>Forward</code> message of the BungeeCord channel.
+ * Works with BungeeCord, and with Velocity when <code>bungee-plugin-message-channel</code> is enabled.
+ * <p>
+ * Plugin messages travel over a player's connection, so nothing can be sent or received while a server is empty.
+ * Messages sent then are lost, which is why the first player to join an empty server counts as (re)connecting.
+ */
+public class PluginMessageSyncTransport implements SyncTransport, PluginMessageListener, Listener {
+	private static final String BUNGEE_CHANNEL = "BungeeCord";
+	private static final String SUB_CHANNEL = "BlueMapPlayerControl";
+	/** How long to wait after the first join, so the proxy has finished connecting the player */
+	private static final long CONNECT_DELAY_TICKS = 20;
+
+	private final JavaPlugin plugin;
+	private final TaskScheduler scheduler;
+	private volatile @Nullable Receiver receiver;
+
+	public PluginMessageSyncTransport(JavaPlugin plugin, TaskScheduler scheduler) {
+		this.plugin = plugin;
+		this.scheduler = scheduler;
+	}
+
+	@Override
+	public void start(Receiver receiver) {
+		this.receiver = receiver;
+		Bukkit.getMessenger().registerOutgoingPluginChannel(plugin, BUNGEE_CHANNEL);
+		Bukkit.getMessenger().registerIncomingPluginChannel(plugin, BUNGEE_CHANNEL, this);
+		Bukkit.getPluginManager().registerEvents(this, plugin);
+
+		// After a reload, players may already be online
+		if (!Bukkit.getOnlinePlayers().isEmpty()) receiver.onConnected();
+	}
+
+	@Override
+	public void send(byte[] message) {
+		Iterator<? extends Player> players = Bukkit.getOnlinePlayers().iterator();
+		if (!players.hasNext()) return;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length + 64);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeUTF("Forward");
+			out.writeUTF("ALL");
+			out.writeUTF(SUB_CHANNEL);
+			out.writeShort(message.length);
+			out.write(message);
+		} catch (IOException e) {
+			// Writing to memory doesn't fail
+			throw new UncheckedIOException(e);
+		}
+		players.next().sendPluginMessage(plugin, BUNGEE_CHANNEL, bytes.toByteArray());
+	}
+
+	@Override
+	public void close() {
+		receiver = null;
+		Bukkit.getMessenger().unregisterIncomingPluginChannel(plugin, BUNGEE_CHANNEL, this);
+		Bukkit.getMessenger().unregisterOutgoingPluginChannel(plugin, BUNGEE_CHANNEL);
+		HandlerList.unregisterAll(this);
+	}
+
+	@Override
+	public void onPluginMessageReceived(@NotNull String channel, @NotNull Player player, byte @NotNull [] message) {
+		Receiver current = receiver;
+		if (current == null || !channel.equals(BUNGEE_CHANNEL)) return;
+
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(message))) {
+			if (!in.readUTF().equals(SUB_CHANNEL)) return;
+			byte[] data = new byte[in.readUnsignedShort()];
+			in.readFully(data);
+			current.receive(data);
+		} catch (IOException e) {
+			// Someone else's message on the same channel, in a format we don't know
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerJoin(PlayerJoinEvent event) {
+		if (Bukkit.getOnlinePlayers().size() != 1) return;
+
+		Player player = event.getPlayer();
+		scheduler.runForEntity(player, () -> {
+			Receiver current = receiver;
+			if (current != null && player.isOnline()) current.onConnected();
+		}, CONNECT_DELAY_TICKS);
+	}
+}
@@ -0,0 +1,102 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures how long each stage of the startup takes, and logs it.
+ * <p>
+ * Stages that commands and listeners need run right away, while the server waits for them.
+ * Deferred stages run in the background or once the server has started,
+ * and are logged together once all of them are done.
+ */
+final class StartupTimer {
+	private final Logger logger;
+	private final long start = System.nanoTime();
+	private final List<String> stages = new ArrayList<>();
+	private final List<String> deferredStages = new ArrayList<>();
+	private final List<CompletableFuture<?>> deferred = new ArrayList<>();
+
+	StartupTimer(Logger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Run a stage right away
+	 * @param name The name of the stage, for the log
+	 * @param stage The stage
+	 */
+	void run(String name, Runnable stage) {
+		long stageStart = System.nanoTime();
+		stage.run();
+		stages.add(name + " " + format(System.nanoTime() - stageStart));
+	}
+
+	/**
+	 * Run a stage later, on an executor
+	 * @param name The name of the stage, for the log
+	 * @param executor The executor to run the stage on
+	 * @param stage The stage
+	 * @return A future that completes once the stage has run, or completes exceptionally if it failed
+	 */
+	CompletableFuture<Void> defer(String name, Executor executor, Runnable stage) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		executor.execute(() -> {
+			long stageStart = System.nanoTime();
+			try {
+				stage.run();
+				record(name, System.nanoTime() - stageStart);
+				future.complete(null);
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Startup stage '" + name + "' failed", e);
+				record(name, System.nanoTime() - stageStart);
+				future.completeExceptionally(e);
+			}
+		});
+		deferred.add(future);
+		return future;
+	}
+
+	/**
+	 * Measure a stage that was already started in the background, until it completes
+	 * @param name The name of the stage, for the log
+	 * @param stage The stage, which may also complete exceptionally
+	 */
+	void track(String name, CompletableFuture<?> stage) {
+		long stageStart = System.nanoTime();
+		deferred.add(stage.handle((result, e) -> {
+			record(name, System.nanoTime() - stageStart);
+			return null;
+		}));
+	}
+
+	/**
+	 * Log the stages that have run, and log the deferred stages once they are all done.
+	 * Should be called at the end of the startup.
+	 */
+	void finish() {
+		logger.info("[BlueMapPlayerControl] Plugin enabled successfully in " + format(System.nanoTime() - start) + " (" + String.join(", ", stages) + ")");
+		if (deferred.isEmpty()) return;
+
+		CompletableFuture.allOf(deferred.toArray(new CompletableFuture<?>[0])).whenComplete((result, e) -> {
+			synchronized (deferredStages) {
+				logger.info("[BlueMapPlayerControl] Deferred startup finished (" + String.join(", ", deferredStages) + ")");
+			}
+		});
+	}
+
+	private void record(String name, long nanos) {
+		synchronized (deferredStages) {
+			deferredStages.add(name + " " + format(nanos));
+		}
+	}
+
+	private static String format(long nanos) {
+		return String.format(Locale.ROOT, "%.1f ms", nanos / 1_000_000.0);
+	}
+}
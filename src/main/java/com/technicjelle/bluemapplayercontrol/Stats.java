@@ -0,0 +1,215 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the plugin's operations.
+ * Everything is recorded into {@link LongAdder}s, so recording is lock-free and safe from any thread.
+ */
+public class Stats {
+	/**
+	 * The operations whose latency is measured
+	 */
+	public enum Operation {
+		/** Only until the command has handed off its work; debounced and batched changes are applied later */
+		COMMAND_DISPATCH("command_dispatch"),
+		SET_VISIBILITY("set_visibility"),
+		GET_VISIBILITY("get_visibility"),
+		MESSAGE_RENDER("message_render"),
+		LOGIN("login"),
+		RULES("rules"),
+		RELOAD("reload");
+
+		private final String name;
+
+		Operation(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * The kinds of batches whose size is measured
+	 */
+	public enum Batch {
+		SELECTOR("selector"),
+		JOIN("join"),
+		SERVICE("service"),
+		SYNC("sync"),
+		GROUP("group");
+
+		private final String name;
+
+		Batch(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	private final Histogram[] latencies = new Histogram[Operation.values().length];
+	private final Histogram[] batchSizes = new Histogram[Batch.values().length];
+
+	public Stats() {
+		for (int i = 0; i < latencies.length; i++) latencies[i] = new Histogram();
+		for (int i = 0; i < batchSizes.length; i++) batchSizes[i] = new Histogram();
+	}
+
+	/**
+	 * Record that an operation finished just now
+	 * @param operation The operation
+	 * @param startNanos When the operation started, from {@link System#nanoTime()}
+	 */
+	public void record(Operation operation, long startNanos) {
+		latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Record the size of a batch
+	 * @param batch The kind of batch
+	 * @param size The number of players in the batch
+	 */
+	public void recordBatch(Batch batch, int size) {
+		batchSizes[batch.ordinal()].record(size);
+	}
+
+	/**
+	 * @param operation The operation
+	 * @return The latencies of the operation, in nanoseconds
+	 */
+	public Histogram getLatency(Operation operation) {
+		return latencies[operation.ordinal()];
+	}
+
+	/**
+	 * @param batch The kind of batch
+	 * @return The sizes of the batches
+	 */
+	public Histogram getBatchSize(Batch batch) {
+		return batchSizes[batch.ordinal()];
+	}
+
+	/**
+	 * Write all statistics in the Prometheus text exposition format.
+	 * Does file I/O, so don't call this on a tick thread.
+	 * @param file The file to write to
+	 */
+	public void writePrometheus(Path file) throws IOException {
+		Files.createDirectories(file.getParent());
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			writer.write("# HELP bmpc_operation_duration_seconds How long BlueMapPlayerControl operations take\n");
+			writer.write("# TYPE bmpc_operation_duration_seconds histogram\n");
+			for (Operation operation : Operation.values()) {
+				getLatency(operation).writePrometheus(writer, "bmpc_operation_duration_seconds", "operation=\"" + operation.getName() + "\"", 1e-9);
+			}
+
+			writer.write("# HELP bmpc_batch_size How many players are changed at once\n");
+			writer.write("# TYPE bmpc_batch_size histogram\n");
+			for (Batch batch : Batch.values()) {
+				getBatchSize(batch).writePrometheus(writer, "bmpc_batch_size", "batch=\"" + batch.getName() + "\"", 1);
+			}
+		}
+		// Scrapers should never see a half-written file
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * A histogram with power-of-two buckets: bucket <code>i</code> holds the values from <code>2^i</code> up to <code>2^(i+1)</code>.
+	 * Coarse, but recording is only a few additions, and it covers every possible value.
+	 */
+	public static final class Histogram {
+		private static final int BUCKETS = 64;
+
+		private final LongAdder[] buckets = new LongAdder[BUCKETS];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		private Histogram() {
+			for (int i = 0; i < BUCKETS; i++) buckets[i] = new LongAdder();
+		}
+
+		private void record(long value) {
+			value = Math.max(0, value);
+			buckets[63 - Long.numberOfLeadingZeros(value | 1)].increment();
+			count.increment();
+			sum.add(value);
+			max.accumulate(value);
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		public double getMean() {
+			long count = getCount();
+			return count == 0 ? 0 : (double) sum.sum() / count;
+		}
+
+		/**
+		 * @param quantile The quantile, between 0 and 1
+		 * @return An upper bound of the value at that quantile
+		 */
+		public long getQuantile(double quantile) {
+			long[] counts = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = buckets[i].sum();
+				total += counts[i];
+			}
+			if (total == 0) return 0;
+
+			long rank = (long) Math.ceil(quantile * total);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank) return Math.min(upperBound(i), getMax());
+			}
+			return getMax();
+		}
+
+		private static long upperBound(int bucket) {
+			return bucket >= 62 ? Long.MAX_VALUE : (1L << (bucket + 1)) - 1;
+		}
+
+		private void writePrometheus(Writer writer, String name, String labels, double scale) throws IOException {
+			int highest = 0;
+			long total = 0;
+			long[] counts = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = buckets[i].sum();
+				total += counts[i];
+				if (counts[i] != 0) highest = i;
+			}
+
+			// The last bucket has no upper bound, so it is only counted in +Inf.
+			// The bounds are calculated as doubles, because 2^63 doesn't fit in a long.
+			long cumulative = 0;
+			for (int i = 0; i <= Math.min(highest, BUCKETS - 2); i++) {
+				cumulative += counts[i];
+				writer.write(name + "_bucket{" + labels + ",le=\"" + Math.scalb(scale, i + 1) + "\"} " + cumulative + "\n");
+			}
+			// Counted from the buckets, so +Inf and the count match the buckets even while values are being recorded
+			writer.write(name + "_bucket{" + labels + ",le=\"+Inf\"} " + total + "\n");
+			writer.write(name + "_sum{" + labels + "} " + sum.sum() * scale + "\n");
+			writer.write(name + "_count{" + labels + "} " + total + "\n");
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A message between {@link VisibilitySync}s on different servers.
+ * <p>
+ * Format: the magic number, a format version, the message type, the ID of the sending node and the entry count,
+ * then for every entry the UUID as two longs, the clock and node of the change, and a byte that is 1 if the player was made visible.
+ * Messages with another magic number or format version are ignored, so servers can be updated one at a time.
+ *
+ * @param type What the message is for
+ * @param sender The ID of the node that sent the message
+ * @param entries The visibilities in the message
+ */
+public record SyncMessage(Type type, long sender, List<Entry> entries) {
+	private static final int MAGIC = 0x424D5053; // "BMPS"
+	private static final byte FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = Integer.BYTES + Byte.BYTES + Byte.BYTES + Long.BYTES + Integer.BYTES;
+	private static final int ENTRY_SIZE = Long.BYTES * 4 + Byte.BYTES;
+
+	/** How many entries fit in one message, staying below the size limit of plugin messages */
+	public static final int MAX_ENTRIES = 800;
+	/** The size of the largest message */
+	public static final int MAX_SIZE = HEADER_SIZE + MAX_ENTRIES * ENTRY_SIZE;
+
+	public SyncMessage {
+		if (entries.size() > MAX_ENTRIES) throw new IllegalArgumentException("Too many entries: " + entries.size());
+	}
+
+	/**
+	 * @return The message as bytes
+	 */
+	public byte[] encode() {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + entries.size() * ENTRY_SIZE);
+		buffer.putInt(MAGIC);
+		buffer.put(FORMAT_VERSION);
+		buffer.put((byte) type.ordinal());
+		buffer.putLong(sender);
+		buffer.putInt(entries.size());
+		for (Entry entry : entries) {
+			buffer.putLong(entry.player().getMostSignificantBits());
+			buffer.putLong(entry.player().getLeastSignificantBits());
+			buffer.putLong(entry.clock());
+			buffer.putLong(entry.node());
+			buffer.put((byte) (entry.visible() ? 1 : 0));
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * @param bytes A message as bytes
+	 * @return The message, or <code>null</code> if it is not a message in a format this version understands
+	 */
+	public static @Nullable SyncMessage decode(byte[] bytes) {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			if (buffer.getInt() != MAGIC || buffer.get() != FORMAT_VERSION) return null;
+
+			int type = buffer.get();
+			long sender = buffer.getLong();
+			int count = buffer.getInt();
+			if (type < 0 || type >= Type.VALUES.length || count < 0 || count > MAX_ENTRIES) return null;
+
+			List<Entry> entries = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				UUID player = new UUID(buffer.getLong(), buffer.getLong());
+				long clock = buffer.getLong();
+				long node = buffer.getLong();
+				boolean visible = buffer.get() == 1;
+				entries.add(new Entry(player, visible, clock, node));
+			}
+			return new SyncMessage(Type.VALUES[type], sender, entries);
+		} catch (BufferUnderflowException e) {
+			return null;
+		}
+	}
+
+	public enum Type {
+		/** Changes that were just made on the sender */
+		DELTA,
+		/** Everything the sender knows, for a node that may have missed changes */
+		SNAPSHOT,
+		/** Asks all other nodes for a snapshot */
+		SNAPSHOT_REQUEST;
+
+		private static final Type[] VALUES = values();
+	}
+
+	/**
+	 * The visibility of one player, as set by one change
+	 * @param player The player's UUID
+	 * @param visible Whether the player is visible on the map
+	 * @param clock When the change was made, on the clock of the {@link VisibilitySync}s
+	 * @param node The ID of the node that made the change, to break ties between changes made at the same time
+	 */
+	public record Entry(UUID player, boolean visible, long clock, long node) {
+		/**
+		 * @param other Another change to the same player, or <code>null</code>
+		 * @return Whether this change wins from the other one
+		 */
+		public boolean isNewerThan(@Nullable Entry other) {
+			if (other == null) return true;
+			if (clock != other.clock) return clock > other.clock;
+			return node > other.node;
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package com.technicjelle.bluemapplayercontrol;
+
+/**
+ * Carries {@link VisibilitySync} messages between servers.
+ * Every message that is sent should reach every other server that uses the same transport, but delivery is best-effort:
+ * messages may be lost while servers can't reach each other, which the snapshot on connect makes up for.
+ * <p>
+ * Implementations only move bytes around; they don't need to understand them.
+ */
+public interface SyncTransport {
+	/**
+	 * Start sending and receiving messages
+	 * @param receiver Gets the messages from other servers
+	 */
+	void start(Receiver receiver);
+
+	/**
+	 * Send a message to all other servers
+	 * @param message The message, at most {@link SyncMessage#MAX_SIZE} bytes
+	 */
+	void send(byte[] message);
+
+	/**
+	 * Stop sending and receiving messages
+	 */
+	void close();
+
+	interface Receiver {
+		/**
+		 * Called with every message from another server, on any thread
+		 * @param message The message
+		 */
+		void receive(byte[] message);
+
+		/**
+		 * Called when the transport has (re)connected to the other servers, and may have missed messages before that
+		 */
+		void onConnected();
+	}
+}
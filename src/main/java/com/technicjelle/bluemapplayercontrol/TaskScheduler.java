@@ -0,0 +1,132 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Entity;
+import org.bukkit.plugin.Plugin;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatches work to the right thread on both Folia and Paper/Spigot.
+ * <ul>
+ *     <li>Work on a single player goes to the thread that owns that player</li>
+ *     <li>Work on many players at once goes to the global region</li>
+ *     <li>I/O goes to an async thread</li>
+ * </ul>
+ * On Paper/Spigot, the first two both end up on the main thread.
+ */
+public class TaskScheduler {
+	private static final boolean FOLIA = detectFolia();
+
+	private final Plugin plugin;
+
+	public TaskScheduler(Plugin plugin) {
+		this.plugin = plugin;
+	}
+
+	/**
+	 * @return Whether the server is running Folia
+	 */
+	public static boolean isFolia() {
+		return FOLIA;
+	}
+
+	/**
+	 * Run a task on the thread that owns the entity, right away if that is the current thread
+	 * @param entity The entity the task works on
+	 * @param task The task
+	 */
+	public void runForEntity(Entity entity, Runnable task) {
+		if (FOLIA ? Bukkit.isOwnedByCurrentRegion(entity) : Bukkit.isPrimaryThread()) {
+			task.run();
+		} else {
+			runForEntity(entity, task, 1);
+		}
+	}
+
+	/**
+	 * Run a task on the thread that owns the entity, after a delay.
+	 * If the entity is removed before then, the task is dropped.
+	 * @param entity The entity the task works on
+	 * @param task The task
+	 * @param delayTicks The delay in ticks, at least 1
+	 */
+	public void runForEntity(Entity entity, Runnable task, long delayTicks) {
+		if (FOLIA) {
+			entity.getScheduler().execute(plugin, task, null, Math.max(1, delayTicks));
+		} else {
+			Bukkit.getScheduler().runTaskLater(plugin, task, delayTicks);
+		}
+	}
+
+	/**
+	 * Run a task on the global region, right away if that is the current thread
+	 * @param task The task
+	 */
+	public void runGlobal(Runnable task) {
+		if (FOLIA ? Bukkit.isGlobalTickThread() : Bukkit.isPrimaryThread()) {
+			task.run();
+		} else {
+			runGlobal(task, 1);
+		}
+	}
+
+	/**
+	 * Run a task on the global region, after a delay
+	 * @param task The task
+	 * @param delayTicks The delay in ticks, at least 1
+	 */
+	public void runGlobal(Runnable task, long delayTicks) {
+		if (FOLIA) {
+			Bukkit.getGlobalRegionScheduler().runDelayed(plugin, scheduledTask -> task.run(), Math.max(1, delayTicks));
+		} else {
+			Bukkit.getScheduler().runTaskLater(plugin, task, delayTicks);
+		}
+	}
+
+	/**
+	 * Run a task on an async thread
+	 * @param task The task
+	 */
+	public void runAsync(Runnable task) {
+		if (FOLIA) {
+			Bukkit.getAsyncScheduler().runNow(plugin, scheduledTask -> task.run());
+		} else {
+			Bukkit.getScheduler().runTaskAsynchronously(plugin, task);
+		}
+	}
+
+	/**
+	 * Run a task on an async thread, repeatedly, until the plugin is disabled
+	 * @param task The task
+	 * @param periodSeconds The time between runs in seconds, also used as the initial delay
+	 */
+	public void runAsyncTimer(Runnable task, long periodSeconds) {
+		if (FOLIA) {
+			Bukkit.getAsyncScheduler().runAtFixedRate(plugin, scheduledTask -> task.run(), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+		} else {
+			Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, task, periodSeconds * 20, periodSeconds * 20);
+		}
+	}
+
+	/**
+	 * Cancel every task of this plugin that hasn't run yet
+	 */
+	public void cancelAll() {
+		if (FOLIA) {
+			Bukkit.getGlobalRegionScheduler().cancelTasks(plugin);
+			Bukkit.getAsyncScheduler().cancelTasks(plugin);
+		} else {
+			Bukkit.getScheduler().cancelTasks(plugin);
+		}
+	}
+
+	private static boolean detectFolia() {
+		try {
+			Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+}
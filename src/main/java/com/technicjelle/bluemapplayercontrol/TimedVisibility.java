@@ -0,0 +1,225 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import de.bluecolored.bluemap.api.BlueMapAPI;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Visibility changes that are undone after a while, like hiding a player for the duration of an event.
+ * <p>
+ * All pending expirations are kept in a single queue, ordered by when they expire.
+ * One timer checks the head of the queue once per second, so the cost doesn't grow with the number of pending expirations,
+ * and no task is scheduled per player. Expired changes are undone through the {@link VisibilityService}, in one batch.
+ * <p>
+ * Expirations are stored with wall-clock times, so they survive restarts.
+ * An expiration is dropped as soon as the player is given the other visibility by anything else,
+ * or any visibility by a command or the {@link VisibilityService} without a duration,
+ * so a later permanent change is never undone, even if it gives the player the visibility of the timed change.
+ * <p>
+ * File format: the magic number, a format version, the entry count,
+ * then for every entry the UUID as two longs, the expiry time in milliseconds since the epoch, and a byte that is 1 if the player was made visible.
+ */
+public class TimedVisibility implements VisibilityService.VisibilityListener {
+	private static final int MAGIC = 0x424D5054; // "BMPT"
+	private static final byte FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = Integer.BYTES + Byte.BYTES + Integer.BYTES;
+	private static final int ENTRY_SIZE = Long.BYTES * 3 + Byte.BYTES;
+
+	private final Path file;
+	private final Logger logger;
+	private final PriorityQueue<Entry> queue = new PriorityQueue<>(Comparator.comparingLong(Entry::expiresAt));
+	/** The current entry of each player; entries in the queue that aren't in here anymore were replaced, and are skipped */
+	private final Map<UUID, Entry> entries = new HashMap<>();
+	private boolean dirty;
+	/** Whether the file was read, or there was none; until then, it isn't written */
+	private volatile boolean loaded;
+
+	public TimedVisibility(Path file, Logger logger) {
+		this.file = file;
+		this.logger = logger;
+	}
+
+	/**
+	 * Read the pending expirations from disk. Should only be called during startup.
+	 * Nothing is written until this has succeeded, so a file that couldn't be read isn't replaced.
+	 */
+	public void load() {
+		if (!Files.exists(file)) {
+			loaded = true;
+			return;
+		}
+
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+			if (buffer.getInt() != MAGIC || buffer.get() != FORMAT_VERSION) {
+				logger.warning("Ignoring " + file.getFileName() + ": unknown file format");
+				loaded = true;
+				return;
+			}
+
+			// Checked before reading any entries, so a damaged file doesn't load half of them
+			int count = buffer.getInt();
+			if (count < 0 || (long) count * ENTRY_SIZE > buffer.remaining()) {
+				logger.warning("Ignoring " + file.getFileName() + ": it claims " + count + " entries, but is too short for them");
+				loaded = true;
+				return;
+			}
+			synchronized (this) {
+				for (int i = 0; i < count; i++) {
+					UUID player = new UUID(buffer.getLong(), buffer.getLong());
+					long expiresAt = buffer.getLong();
+					boolean visible = buffer.get() == 1;
+					put(new Entry(player, visible, expiresAt));
+				}
+				dirty = false;
+			}
+			loaded = true;
+		} catch (IOException | BufferUnderflowException e) {
+			logger.log(Level.WARNING, "Could not load " + file.getFileName() + ", so it won't be written until the next start", e);
+		}
+	}
+
+	/**
+	 * Remember that players were given a visibility temporarily.
+	 * Replaces any earlier temporary change of the same players.
+	 * @param players The players' UUIDs
+	 * @param visible The visibility the players were given
+	 * @param expiresAt When to undo the change, in milliseconds since the epoch
+	 */
+	public synchronized void add(Collection<UUID> players, boolean visible, long expiresAt) {
+		for (UUID player : players) {
+			put(new Entry(player, visible, expiresAt));
+		}
+		dirty = true;
+	}
+
+	/**
+	 * Forget the temporary changes of players, because they were given a visibility permanently.
+	 * Needed even if it is the same visibility, which doesn't reach {@link #onVisibilityChange(UUID, boolean)}.
+	 * @param players The players' UUIDs
+	 */
+	public synchronized void cancel(Collection<UUID> players) {
+		for (UUID player : players) {
+			// Its entry in the queue is skipped once it comes up
+			if (entries.remove(player) != null) dirty = true;
+		}
+	}
+
+	@Override
+	public synchronized void onVisibilityChange(UUID player, boolean visible) {
+		// The timed change itself, or a change to the same visibility, keeps the expiration
+		Entry entry = entries.get(player);
+		if (entry == null || entry.visible() == visible) return;
+
+		// Its entry in the queue is skipped once it comes up
+		entries.remove(player);
+		dirty = true;
+	}
+
+	/**
+	 * @return The number of pending expirations
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Undo the changes that have expired, and save the pending expirations if they changed.
+	 * Meant to be called once per second from an async thread.
+	 * @param visibilityService The service to undo the changes with
+	 */
+	void tick(VisibilityServiceProvider visibilityService) {
+		// Expirations wait until BlueMap is there to apply them to
+		if (BlueMapAPI.getInstance().isPresent()) {
+			List<UUID> toShow = new ArrayList<>();
+			List<UUID> toHide = new ArrayList<>();
+			long now = System.currentTimeMillis();
+			synchronized (this) {
+				Entry head;
+				while ((head = queue.peek()) != null && head.expiresAt() <= now) {
+					queue.poll();
+					if (!entries.remove(head.player(), head)) continue;
+					dirty = true;
+
+					// Only undo the change if nothing else has changed the player since
+					if (visibilityService.isVisible(head.player()) != head.visible()) continue;
+					if (head.visible()) toHide.add(head.player());
+					else toShow.add(head.player());
+				}
+			}
+			if (!toShow.isEmpty()) visibilityService.undoExpired(toShow, true);
+			if (!toHide.isEmpty()) visibilityService.undoExpired(toHide, false);
+		}
+
+		save();
+	}
+
+	/**
+	 * Write the pending expirations to disk, if they changed since the last write
+	 */
+	public void save() {
+		// Writing what is in memory would lose what is in a file that couldn't be read
+		if (!loaded) return;
+
+		List<Entry> snapshot;
+		synchronized (this) {
+			if (!dirty) return;
+			snapshot = new ArrayList<>(entries.values());
+			dirty = false;
+		}
+
+		try {
+			Files.createDirectories(file.getParent());
+			Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+			try (OutputStream fileStream = Files.newOutputStream(temp);
+				 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, HEADER_SIZE + snapshot.size() * ENTRY_SIZE))) {
+				out.writeInt(MAGIC);
+				out.writeByte(FORMAT_VERSION);
+				out.writeInt(snapshot.size());
+				for (Entry entry : snapshot) {
+					out.writeLong(entry.player().getMostSignificantBits());
+					out.writeLong(entry.player().getLeastSignificantBits());
+					out.writeLong(entry.expiresAt());
+					out.writeByte(entry.visible() ? 1 : 0);
+				}
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			synchronized (this) {
+				dirty = true;
+			}
+			logger.log(Level.WARNING, "Could not save " + file.getFileName(), e);
+		}
+	}
+
+	private void put(Entry entry) {
+		entries.put(entry.player(), entry);
+		queue.add(entry);
+	}
+
+	/**
+	 * @param player The player's UUID
+	 * @param visible The visibility the player was given
+	 * @param expiresAt When to undo the change, in milliseconds since the epoch
+	 */
+	private record Entry(UUID player, boolean visible, long expiresAt) {
+	}
+}
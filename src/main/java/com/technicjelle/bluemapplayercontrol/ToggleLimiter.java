@@ -0,0 +1,163 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Keeps players from changing visibilities faster than BlueMap should have to keep up with.
+ * <ul>
+ *     <li>Every player has a token bucket for commands on a single player, and a separate one for commands on many players</li>
+ *     <li>Changes to the same player within the debounce window are collapsed into one, which is applied once at the end of the window</li>
+ * </ul>
+ * Commands from the console are never limited.
+ * Buckets are kept after a player quits, until they have filled up again, so quitting and joining again doesn't reset them.
+ */
+public class ToggleLimiter implements Listener {
+	private final ConfigManager configManager;
+	private final TaskScheduler scheduler;
+	private final Map<UUID, Bucket> buckets = new ConcurrentHashMap<>();
+	private final Map<UUID, Bucket> bulkBuckets = new ConcurrentHashMap<>();
+	private final Map<UUID, Pending> pending = new ConcurrentHashMap<>();
+
+	public ToggleLimiter(ConfigManager configManager, TaskScheduler scheduler) {
+		this.configManager = configManager;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Take a token for a command on a single player
+	 * @param sender The sender of the command
+	 * @return Whether the sender may run the command
+	 */
+	public boolean tryAcquire(CommandSender sender) {
+		if (!(sender instanceof Player player)) return true;
+		Limits current = configManager.getToggleLimits();
+		return buckets.computeIfAbsent(player.getUniqueId(), uuid -> new Bucket()).tryTake(current.burst(), current.perSecond(), System.nanoTime());
+	}
+
+	/**
+	 * Take a token for a command on many players at once
+	 * @param sender The sender of the command
+	 * @return Whether the sender may run the command
+	 */
+	public boolean tryAcquireBulk(CommandSender sender) {
+		if (!(sender instanceof Player player)) return true;
+		Limits current = configManager.getToggleLimits();
+		return bulkBuckets.computeIfAbsent(player.getUniqueId(), uuid -> new Bucket()).tryTake(current.bulkBurst(), current.bulkPerSecond(), System.nanoTime());
+	}
+
+	/**
+	 * Apply an action to a player at the end of the debounce window, combined with any other actions on them in that window.
+	 * Only the last submitted callback is called, on the player's own thread.
+	 * @param target The player to change
+	 * @param action The action to apply
+	 * @param apply Called with the combined action, or <code>null</code> if the actions cancelled each other out
+	 */
+	public void submit(Player target, VisibilityAction action, Consumer<@Nullable VisibilityAction> apply) {
+		long debounceTicks = configManager.getToggleLimits().debounceTicks();
+		if (debounceTicks <= 0) {
+			scheduler.runForEntity(target, () -> apply.accept(action));
+			return;
+		}
+
+		UUID uuid = target.getUniqueId();
+		boolean[] first = new boolean[1];
+		pending.compute(uuid, (key, existing) -> {
+			if (existing == null) {
+				first[0] = true;
+				return new Pending(action, apply);
+			}
+			existing.action = existing.action == null ? action : existing.action.then(action);
+			existing.apply = apply;
+			return existing;
+		});
+
+		if (first[0]) {
+			scheduler.runForEntity(target, () -> {
+				Pending change = pending.remove(uuid);
+				if (change != null) change.apply.accept(change.action);
+			}, debounceTicks);
+		}
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerQuit(PlayerQuitEvent event) {
+		UUID uuid = event.getPlayer().getUniqueId();
+		// A full bucket is the same as a new one, so only those can be forgotten without resetting anyone's limit
+		Limits current = configManager.getToggleLimits();
+		long now = System.nanoTime();
+		buckets.values().removeIf(bucket -> bucket.isFull(current.burst(), current.perSecond(), now));
+		bulkBuckets.values().removeIf(bucket -> bucket.isFull(current.bulkBurst(), current.bulkPerSecond(), now));
+		// The scheduled apply is dropped along with the player, so it must not block the next change
+		pending.remove(uuid);
+	}
+
+	/**
+	 * @param burst How many commands on a single player can be used in a row
+	 * @param perSecond How many commands on a single player can be used per second after that
+	 * @param bulkBurst How many commands on many players can be used in a row
+	 * @param bulkPerSecond How many commands on many players can be used per second after that
+	 * @param debounceTicks How long to collect changes to the same player before applying them, or 0 to apply them right away
+	 */
+	public record Limits(int burst, double perSecond, int bulkBurst, double bulkPerSecond, long debounceTicks) {
+	}
+
+	/**
+	 * A token bucket, refilled lazily when a token is taken
+	 */
+	static final class Bucket {
+		private double tokens = Double.NaN;
+		private long lastRefill;
+
+		/**
+		 * @param capacity The most tokens the bucket can hold
+		 * @param perSecond How many tokens are added per second
+		 * @param now The current time, from {@link System#nanoTime()}
+		 * @return Whether a token was taken
+		 */
+		synchronized boolean tryTake(int capacity, double perSecond, long now) {
+			tokens = tokensAt(capacity, perSecond, now);
+			lastRefill = now;
+
+			if (tokens < 1) return false;
+			tokens--;
+			return true;
+		}
+
+		/**
+		 * @param capacity The most tokens the bucket can hold
+		 * @param perSecond How many tokens are added per second
+		 * @param now The current time, from {@link System#nanoTime()}
+		 * @return Whether the bucket has filled up again, so it is the same as a new one
+		 */
+		synchronized boolean isFull(int capacity, double perSecond, long now) {
+			return tokensAt(capacity, perSecond, now) >= capacity;
+		}
+
+		private double tokensAt(int capacity, double perSecond, long now) {
+			// A new bucket starts full
+			if (Double.isNaN(tokens)) return capacity;
+			return Math.min(capacity, tokens + (now - lastRefill) / 1e9 * perSecond);
+		}
+	}
+
+	private static final class Pending {
+		private @Nullable VisibilityAction action;
+		private Consumer<@Nullable VisibilityAction> apply;
+
+		private Pending(VisibilityAction action, Consumer<@Nullable VisibilityAction> apply) {
+			this.action = action;
+			this.apply = apply;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends messages straight to a fixed list of other servers, as UDP datagrams.
+ * Meant for servers on the same machine or a private network, since the messages are neither encrypted nor authenticated.
+ * It listens on the loopback address unless told otherwise, and drops datagrams that don't come from one of the peers.
+ * <p>
+ * There is no connection to lose, so {@link Receiver#onConnected()} is only called once, at startup.
+ * Servers that start later ask for a snapshot themselves.
+ */
+public class UdpSyncTransport implements SyncTransport {
+	private final String bindAddress;
+	private final int port;
+	private final List<InetSocketAddress> peers;
+	private final Set<InetSocketAddress> senders;
+	private final Logger logger;
+	private DatagramSocket socket;
+	private Thread thread;
+
+	/**
+	 * @param bindAddress The address to listen on
+	 * @param port The port to listen on
+	 * @param peers The addresses of the other servers, which are also the only ones messages are accepted from
+	 * @param logger Where to log network errors
+	 */
+	public UdpSyncTransport(String bindAddress, int port, List<InetSocketAddress> peers, Logger logger) {
+		this.bindAddress = bindAddress;
+		this.port = port;
+		this.peers = List.copyOf(peers);
+		this.senders = Set.copyOf(peers);
+		this.logger = logger;
+	}
+
+	/**
+	 * @param address An address as <code>host:port</code>
+	 * @return The address
+	 * @throws IllegalArgumentException If the address is not in that format
+	 */
+	public static InetSocketAddress parseAddress(String address) {
+		int colon = address.lastIndexOf(':');
+		if (colon <= 0) throw new IllegalArgumentException("Missing port in " + address);
+		try {
+			return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid port in " + address, e);
+		}
+	}
+
+	@Override
+	public void start(Receiver receiver) {
+		try {
+			socket = new DatagramSocket(new InetSocketAddress(bindAddress, port));
+		} catch (SocketException | IllegalArgumentException e) {
+			logger.log(Level.SEVERE, "Could not listen for sync messages on " + bindAddress + ":" + port, e);
+			return;
+		}
+
+		thread = new Thread(() -> {
+			byte[] buffer = new byte[SyncMessage.MAX_SIZE];
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			while (!socket.isClosed()) {
+				try {
+					packet.setLength(buffer.length);
+					socket.receive(packet);
+					// Peers send from the port they listen on, so anything else isn't one of them
+					if (!senders.contains(packet.getSocketAddress())) continue;
+					receiver.receive(Arrays.copyOf(packet.getData(), packet.getLength()));
+				} catch (IOException e) {
+					if (!socket.isClosed()) logger.log(Level.WARNING, "Could not receive a sync message", e);
+				}
+			}
+		}, "BlueMapPlayerControl sync");
+		thread.setDaemon(true);
+		thread.start();
+
+		receiver.onConnected();
+	}
+
+	@Override
+	public void send(byte[] message) {
+		if (socket == null) return;
+
+		for (InetSocketAddress peer : peers) {
+			try {
+				socket.send(new DatagramPacket(message, message.length, peer));
+			} catch (IOException | IllegalArgumentException e) {
+				logger.log(Level.WARNING, "Could not send a sync message to " + peer, e);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		if (socket != null) socket.close();
+		if (thread != null) thread.interrupt();
+	}
+}
@@ -0,0 +1,59 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The visibility changes that can be applied to a player
+ */
+public enum VisibilityAction {
+	TOGGLE("toggle", PermissionCache.Permission.SELF_TOGGLE, PermissionCache.Permission.OTHERS_TOGGLE),
+	SHOW("show", PermissionCache.Permission.SELF_SHOW, PermissionCache.Permission.OTHERS_SHOW),
+	HIDE("hide", PermissionCache.Permission.SELF_HIDE, PermissionCache.Permission.OTHERS_HIDE);
+
+	private final String name;
+	private final PermissionCache.Permission selfPermission;
+	private final PermissionCache.Permission othersPermission;
+
+	VisibilityAction(String name, PermissionCache.Permission selfPermission, PermissionCache.Permission othersPermission) {
+		this.name = name;
+		this.selfPermission = selfPermission;
+		this.othersPermission = othersPermission;
+	}
+
+	/**
+	 * @param subCommand The subcommand, as typed by the sender
+	 * @return The matching action, or <code>null</code> if the subcommand isn't a visibility action
+	 */
+	public static @Nullable VisibilityAction fromSubCommand(String subCommand) {
+		for (VisibilityAction action : values()) {
+			if (action.name.equalsIgnoreCase(subCommand)) return action;
+		}
+		return null;
+	}
+
+	/**
+	 * Combine this action with one that follows it
+	 * @param next The action that is applied after this one
+	 * @return The single action that has the same effect as both, or <code>null</code> if together they change nothing
+	 */
+	public @Nullable VisibilityAction then(VisibilityAction next) {
+		if (next != TOGGLE) return next;
+		return switch (this) {
+			case TOGGLE -> null;
+			case SHOW -> HIDE;
+			case HIDE -> SHOW;
+		};
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public PermissionCache.Permission getSelfPermission() {
+		return selfPermission;
+	}
+
+	public PermissionCache.Permission getOthersPermission() {
+		return othersPermission;
+	}
+}
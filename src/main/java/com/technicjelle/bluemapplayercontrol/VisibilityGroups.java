@@ -0,0 +1,150 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+import org.bukkit.scoreboard.Scoreboard;
+import org.bukkit.scoreboard.Team;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The named groups of players from the config.
+ * A player is in a group if they are in its scoreboard team, have its permission, or are on its list of players.
+ * <p>
+ * Groups are looked up by team name, so finding the groups of a player costs one team lookup,
+ * plus one permission check for each group that has a permission.
+ */
+public final class VisibilityGroups {
+	private static final VisibilityGroups NONE = new VisibilityGroups(Collections.emptyMap(), Collections.emptyMap(), new Group[0]);
+
+	private final Map<String, Group> groups;
+	/** Team name to the groups of that team */
+	private final Map<String, List<Group>> teamGroups;
+	/** The groups that have a permission or a list of players, which need to be checked for every player */
+	private final Group[] otherGroups;
+
+	private VisibilityGroups(Map<String, Group> groups, Map<String, List<Group>> teamGroups, Group[] otherGroups) {
+		this.groups = groups;
+		this.teamGroups = teamGroups;
+		this.otherGroups = otherGroups;
+	}
+
+	/**
+	 * Compile the groups in a config section
+	 * @param section The <code>groups</code> section of the config, or <code>null</code> if there is none
+	 * @return The compiled groups
+	 */
+	public static VisibilityGroups compile(@Nullable ConfigurationSection section) {
+		if (section == null) return NONE;
+
+		Map<String, Group> groups = new LinkedHashMap<>();
+		Map<String, List<Group>> teamGroups = new HashMap<>();
+		List<Group> otherGroups = new ArrayList<>();
+		for (String name : section.getKeys(false)) {
+			ConfigurationSection groupSection = section.getConfigurationSection(name);
+			if (groupSection == null) continue;
+
+			// Players can be listed by UUID or by name
+			Set<UUID> uuids = new HashSet<>();
+			Set<String> names = new HashSet<>();
+			for (String player : groupSection.getStringList("players")) {
+				try {
+					uuids.add(UUID.fromString(player));
+				} catch (IllegalArgumentException e) {
+					names.add(player.toLowerCase(Locale.ROOT));
+				}
+			}
+
+			Group group = new Group(name.toLowerCase(Locale.ROOT), groupSection.getString("team"), groupSection.getString("permission"), Set.copyOf(uuids), Set.copyOf(names));
+			groups.put(group.name(), group);
+			if (group.team() != null) {
+				teamGroups.computeIfAbsent(group.team(), team -> new ArrayList<>()).add(group);
+			}
+			if (group.permission() != null || !uuids.isEmpty() || !names.isEmpty()) {
+				otherGroups.add(group);
+			}
+		}
+
+		if (groups.isEmpty()) return NONE;
+		return new VisibilityGroups(Collections.unmodifiableMap(groups), teamGroups, otherGroups.toArray(new Group[0]));
+	}
+
+	/**
+	 * @return Whether there are no groups at all
+	 */
+	public boolean isEmpty() {
+		return groups.isEmpty();
+	}
+
+	/**
+	 * @return Whether any group has a scoreboard team
+	 */
+	public boolean hasTeams() {
+		return !teamGroups.isEmpty();
+	}
+
+	/**
+	 * @param name The name of a group, in any case
+	 * @return The group, or <code>null</code> if there is no group with that name
+	 */
+	public @Nullable Group get(String name) {
+		return groups.get(name.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * @return The names of all groups, in the order of the config
+	 */
+	public Set<String> getNames() {
+		return groups.keySet();
+	}
+
+	/**
+	 * Find the groups that a player is in. Reads the scoreboard, so only call this on the global region.
+	 * @param player The player
+	 * @param scoreboard The main scoreboard, or <code>null</code> if there is none yet
+	 * @return The names of the player's groups
+	 */
+	public Set<String> getGroups(Player player, @Nullable Scoreboard scoreboard) {
+		Set<String> result = new HashSet<>();
+		if (scoreboard != null && !teamGroups.isEmpty()) {
+			Team team = scoreboard.getEntryTeam(player.getName());
+			if (team != null) {
+				for (Group group : teamGroups.getOrDefault(team.getName(), Collections.emptyList())) {
+					result.add(group.name());
+				}
+			}
+		}
+		for (Group group : otherGroups) {
+			if (!result.contains(group.name()) && group.containsDirectly(player)) result.add(group.name());
+		}
+		return result;
+	}
+
+	/**
+	 * @param name The name of the group, in lowercase
+	 * @param team The scoreboard team whose players are in the group, if any
+	 * @param permission The permission whose holders are in the group, if any
+	 * @param uuids The UUIDs of the players that are listed in the group
+	 * @param names The lowercase names of the players that are listed in the group
+	 */
+	public record Group(String name, @Nullable String team, @Nullable String permission, Set<UUID> uuids, Set<String> names) {
+		/**
+		 * @return Whether the player is in this group through its permission or its list of players
+		 */
+		private boolean containsDirectly(Player player) {
+			if (uuids.contains(player.getUniqueId())) return true;
+			if (!names.isEmpty() && names.contains(player.getName().toLowerCase(Locale.ROOT))) return true;
+			return permission != null && player.hasPermission(permission);
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import de.bluecolored.bluemap.api.WebApp;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Applies visibility changes to BlueMap and records them in the {@link VisibilityStore}.
+ * BlueMap's current state is cached, so changes that wouldn't change anything are skipped entirely.
+ * Permissions are expected to be checked by the caller, once per batch,
+ * so the loops in here only touch the {@link WebApp} and the store.
+ */
+public class VisibilityManager {
+	private final ConfigManager configManager;
+	private final VisibilityStore store;
+	private final Stats stats;
+	/** What BlueMap currently has for each player, so reads and unchanged writes don't have to go to BlueMap */
+	private final Map<UUID, Boolean> cache = new ConcurrentHashMap<>();
+	private final List<VisibilityService.VisibilityListener> listeners = new CopyOnWriteArrayList<>();
+	private final Logger logger;
+
+	public VisibilityManager(ConfigManager configManager, VisibilityStore store, Stats stats, Logger logger) {
+		this.configManager = configManager;
+		this.store = store;
+		this.stats = stats;
+		this.logger = logger;
+	}
+
+	/**
+	 * @param listener A listener to call after every visibility change
+	 */
+	public void addListener(VisibilityService.VisibilityListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param listener The listener to remove
+	 */
+	public void removeListener(VisibilityService.VisibilityListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Get the visibility of a single player, asking BlueMap only if it isn't cached yet
+	 * @param webApp The BlueMap WebApp to ask
+	 * @param player The player's UUID
+	 * @return Whether the player is visible on the map
+	 */
+	public boolean getVisibility(WebApp webApp, UUID player) {
+		Boolean cached = cache.get(player);
+		if (cached != null) return cached;
+
+		long start = System.nanoTime();
+		boolean visible = webApp.getPlayerVisibility(player);
+		// A change that happened in the meantime is newer than what was just read
+		cache.putIfAbsent(player, visible);
+		stats.record(Stats.Operation.GET_VISIBILITY, start);
+		return visible;
+	}
+
+	/**
+	 * Get the visibility of a player without touching BlueMap. Safe to call from any thread.
+	 * <p>
+	 * This only knows about changes made through this plugin;
+	 * players it has never changed are reported as visible, which is BlueMap's default.
+	 * @param player The player's UUID
+	 * @return Whether the player is visible on the map
+	 */
+	public boolean isVisible(UUID player) {
+		Boolean cached = cache.get(player);
+		if (cached != null) return cached;
+
+		Boolean stored = store.get(player);
+		return stored == null || stored;
+	}
+
+	/**
+	 * Set the visibility of a single player. Does nothing if the player already has that visibility.
+	 * @param webApp The BlueMap WebApp to apply the change to
+	 * @param player The player's UUID
+	 * @param visible Whether the player should be visible on the map
+	 * @return Whether the player's visibility changed
+	 */
+	public boolean setVisibility(WebApp webApp, UUID player, boolean visible) {
+		Boolean state = visible;
+		if (state.equals(cache.get(player))) return false;
+
+		long start = System.nanoTime();
+		boolean[] changed = new boolean[1];
+		// Applied while holding the entry, so concurrent changes to the same player reach BlueMap in the same order as the cache
+		cache.compute(player, (uuid, cached) -> {
+			if (!state.equals(cached)) {
+				webApp.setPlayerVisibility(uuid, visible);
+				changed[0] = true;
+			}
+			return state;
+		});
+		if (!changed[0]) return false;
+
+		store.set(player, visible);
+		stats.record(Stats.Operation.SET_VISIBILITY, start);
+
+		// Listeners are called outside of the entry, so they may change visibilities themselves
+		for (VisibilityService.VisibilityListener listener : listeners) {
+			try {
+				listener.onVisibilityChange(player, visible);
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "A visibility listener threw an exception", e);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Set the visibility of many players at once
+	 * @param webApp The BlueMap WebApp to apply the changes to
+	 * @param players The players' UUIDs
+	 * @param visible Whether the players should be visible on the map
+	 */
+	public void setVisibility(WebApp webApp, Collection<UUID> players, boolean visible) {
+		for (UUID player : players) {
+			setVisibility(webApp, player, visible);
+		}
+	}
+
+	/**
+	 * Re-apply every stored visibility to BlueMap, for when BlueMap has been (re)loaded
+	 * @param webApp The BlueMap WebApp to apply the stored visibilities to
+	 */
+	public void restore(WebApp webApp) {
+		long start = System.nanoTime();
+		invalidate();
+		store.forEach((player, visible) -> {
+			webApp.setPlayerVisibility(player, visible);
+			cache.put(player, visible);
+		});
+		if (configManager.isDebugEnabled()) {
+			configManager.debugLog("Restored visibility of %d players in %d µs", store.size(), (System.nanoTime() - start) / 1000);
+		}
+	}
+
+	/**
+	 * Forget everything that is known about BlueMap's current state, for when BlueMap is (re)loaded or unloaded
+	 */
+	public void invalidate() {
+		cache.clear();
+	}
+
+	/**
+	 * Apply a visibility action to all players in a selection
+	 * @param webApp The BlueMap WebApp to apply the changes to
+	 * @param targets The selected entities; anything that is not a player is ignored
+	 * @param action The action to apply
+	 * @param exclude A player to skip, usually the sender, or <code>null</code>
+	 * @return A summary of what was changed
+	 */
+	public BulkResult apply(WebApp webApp, Collection<? extends Entity> targets, VisibilityAction action, @Nullable Player exclude) {
+		long start = System.nanoTime();
+		int visible = 0;
+		int invisible = 0;
+		int skipped = 0;
+
+		for (Entity target : targets) {
+			if (!(target instanceof Player player)) continue;
+			if (player.equals(exclude)) {
+				skipped++;
+				continue;
+			}
+
+			// Only toggling needs to know the current state
+			UUID uuid = player.getUniqueId();
+			boolean newVisibility = action == VisibilityAction.TOGGLE
+					? !getVisibility(webApp, uuid)
+					: action == VisibilityAction.SHOW;
+
+			// Players that already have that visibility aren't written, and are counted as skipped
+			if (!setVisibility(webApp, uuid, newVisibility)) skipped++;
+			else if (newVisibility) visible++;
+			else invisible++;
+		}
+
+		BulkResult result = new BulkResult(visible, invisible, skipped, System.nanoTime() - start);
+		stats.recordBatch(Stats.Batch.SELECTOR, result.changed());
+		if (configManager.isDebugEnabled()) {
+			configManager.debugLog("Applied %s to %d players (%d skipped) in %d µs",
+					action.getName(), result.changed(), skipped, result.nanos() / 1000);
+		}
+		return result;
+	}
+
+	/**
+	 * @param visible The number of players that were made visible
+	 * @param invisible The number of players that were made invisible
+	 * @param skipped The number of players that were selected, but not changed, because they were excluded or already had that visibility
+	 * @param nanos How long applying the batch took
+	 */
+	public record BulkResult(int visible, int invisible, int skipped, long nanos) {
+		public int changed() {
+			return visible + invisible;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Visibilities that were set for players while they were offline.
+ * They are applied to BlueMap right away, but are also remembered until the player joins,
+ * so the defaults that are applied on join don't undo them.
+ * <p>
+ * Saved as a small YAML file of UUIDs to visibilities, on the I/O executor whenever it changes.
+ */
+public class VisibilityPresets {
+	private final Path file;
+	private final Executor ioExecutor;
+	private final Logger logger;
+	private final Map<UUID, Boolean> presets = new ConcurrentHashMap<>();
+	/** Whether the file was read, or there was none; until then, it isn't written */
+	private volatile boolean loaded;
+
+	public VisibilityPresets(Path file, Executor ioExecutor, Logger logger) {
+		this.file = file;
+		this.ioExecutor = ioExecutor;
+		this.logger = logger;
+	}
+
+	/**
+	 * Read the presets from disk. Should only be called during startup.
+	 * Nothing is written until this has succeeded, so a file that couldn't be read isn't replaced.
+	 */
+	public void load() {
+		if (!Files.exists(file)) {
+			loaded = true;
+			return;
+		}
+
+		try {
+			YamlConfiguration yaml = new YamlConfiguration();
+			yaml.loadFromString(Files.readString(file, StandardCharsets.UTF_8));
+			for (String key : yaml.getKeys(false)) {
+				presets.put(UUID.fromString(key), yaml.getBoolean(key, true));
+			}
+			loaded = true;
+		} catch (IOException | InvalidConfigurationException | IllegalArgumentException e) {
+			logger.log(Level.WARNING, "Could not load " + file.getFileName() + ", so it won't be written until the next start", e);
+		}
+	}
+
+	/**
+	 * Remember a visibility that was set while the player was offline
+	 * @param player The player's UUID
+	 * @param visible The visibility the player was given
+	 */
+	public void put(UUID player, boolean visible) {
+		presets.put(player, visible);
+		saveAsync();
+	}
+
+	/**
+	 * Forget the preset of a player that has joined
+	 * @param player The player's UUID
+	 * @return The visibility that was preset, or <code>null</code> if there was none
+	 */
+	public @Nullable Boolean take(UUID player) {
+		Boolean preset = presets.remove(player);
+		if (preset != null) saveAsync();
+		return preset;
+	}
+
+	private void saveAsync() {
+		ioExecutor.execute(this::save);
+	}
+
+	/**
+	 * Write the presets to disk
+	 */
+	public synchronized void save() {
+		// Writing what is in memory would lose what is in a file that couldn't be read
+		if (!loaded) return;
+
+		YamlConfiguration yaml = new YamlConfiguration();
+		for (Map.Entry<UUID, Boolean> entry : new HashMap<>(presets).entrySet()) {
+			yaml.set(entry.getKey().toString(), entry.getValue());
+		}
+
+		try {
+			Files.createDirectories(file.getParent());
+			Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+			Files.writeString(temp, yaml.saveToString(), StandardCharsets.UTF_8);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not save " + file.getFileName(), e);
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import de.bluecolored.bluemap.api.BlueMapAPI;
+import de.bluecolored.bluemap.api.WebApp;
+import org.bukkit.Bukkit;
+import org.bukkit.GameMode;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerGameModeChangeEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Applies the {@link VisibilityRules} from the config.
+ * Players are only checked when something a rule depends on changes, and each check only runs the rules that are configured.
+ * Vanish plugins have no common event, so only when vanished players are hidden, everyone is checked on a timer.
+ * <p>
+ * Players that a rule hid are shown again once no rule applies to them anymore.
+ * Players that were already hidden, for example with a command, are left alone.
+ * Which players a rule hid is saved as a small YAML file whenever it changes, because players that are online
+ * when the server stops never quit, and would otherwise come back hidden without a rule to show them again.
+ */
+public class VisibilityRuleEngine implements Listener {
+	/** How often players are checked again for being vanished */
+	public static final long VANISH_CHECK_INTERVAL_SECONDS = 2;
+
+	private final BlueMapPlayerControl plugin;
+	private final Path file;
+	/** Players that are hidden because of a rule, and should be shown again once no rule applies anymore */
+	private final Set<UUID> hiddenByRules = ConcurrentHashMap.newKeySet();
+	/** Whether the file was read, or there was none; until then, it isn't written */
+	private volatile boolean loaded;
+
+	public VisibilityRuleEngine(BlueMapPlayerControl plugin, Path file) {
+		this.plugin = plugin;
+		this.file = file;
+	}
+
+	/**
+	 * Read the players that a rule hid from disk. Should only be called during startup.
+	 * Nothing is written until this has succeeded, so a file that couldn't be read isn't replaced.
+	 */
+	public void load() {
+		if (!Files.exists(file)) {
+			loaded = true;
+			return;
+		}
+
+		try {
+			YamlConfiguration yaml = new YamlConfiguration();
+			yaml.loadFromString(Files.readString(file, StandardCharsets.UTF_8));
+			for (String uuid : yaml.getStringList("hidden")) {
+				hiddenByRules.add(UUID.fromString(uuid));
+			}
+			loaded = true;
+		} catch (IOException | InvalidConfigurationException | IllegalArgumentException e) {
+			plugin.getLogger().log(Level.WARNING, "Could not load " + file.getFileName() + ", so it won't be written until the next start", e);
+		}
+	}
+
+	/**
+	 * Check every online player against the rules again, for when the rules or BlueMap have been (re)loaded.
+	 * Each player is checked on their own thread.
+	 */
+	public void evaluateAll() {
+		for (Player player : Bukkit.getOnlinePlayers()) {
+			plugin.getTaskScheduler().runForEntity(player, () -> evaluate(player));
+		}
+	}
+
+	/**
+	 * Check every online player against the rules again if a rule depends on being vanished.
+	 * Checking a player that didn't change is only a few lookups, so this is cheap enough to run on a timer.
+	 */
+	public void checkVanished() {
+		if (!plugin.getConfigManager().getVisibilityRules().isVanishDependent()) return;
+		evaluateAll();
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerJoin(PlayerJoinEvent event) {
+		evaluate(event.getPlayer());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+		evaluate(event.getPlayer());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onPlayerGameModeChange(PlayerGameModeChangeEvent event) {
+		Player player = event.getPlayer();
+		// The player doesn't have the new game mode yet
+		evaluate(player, player.getWorld(), event.getNewGameMode(), player.getLocation().getBlockY());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onPlayerMove(PlayerMoveEvent event) {
+		onMove(event.getPlayer(), event.getFrom(), event.getTo());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onPlayerTeleport(PlayerTeleportEvent event) {
+		onMove(event.getPlayer(), event.getFrom(), event.getTo());
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerQuit(PlayerQuitEvent event) {
+		// Checked again when they join, so they don't stay hidden if the rules change in the meantime
+		UUID uuid = event.getPlayer().getUniqueId();
+		if (!hiddenByRules.remove(uuid)) return;
+		saveAsync();
+		BlueMapAPI.getInstance().ifPresent(api -> plugin.getAuditLog().runAs(AuditLog.Cause.RULES,
+				() -> plugin.getVisibilityManager().setVisibility(api.getWebApp(), uuid, true)));
+	}
+
+	private void onMove(Player player, Location from, Location to) {
+		// Most movement doesn't cross a block boundary vertically, so this is the common case
+		if (!plugin.getConfigManager().getVisibilityRules().isHeightDependent()) return;
+		if (from.getBlockY() == to.getBlockY() && from.getWorld() == to.getWorld()) return;
+
+		evaluate(player, to.getWorld(), player.getGameMode(), to.getBlockY());
+	}
+
+	private void evaluate(Player player) {
+		evaluate(player, player.getWorld(), player.getGameMode(), player.getLocation().getBlockY());
+	}
+
+	private void evaluate(Player player, World world, GameMode gameMode, int blockY) {
+		VisibilityRules rules = plugin.getConfigManager().getVisibilityRules();
+		UUID uuid = player.getUniqueId();
+		// Nothing to check, unless a rule that was removed on reload still hides the player
+		if (rules.isEmpty() && !hiddenByRules.contains(uuid)) return;
+
+		Optional<BlueMapAPI> api = BlueMapAPI.getInstance();
+		// Everyone is checked again once BlueMap has enabled and the stored visibilities are loaded
+		if (api.isEmpty() || !plugin.isReady()) return;
+
+		long start = System.nanoTime();
+		WebApp webApp = api.get().getWebApp();
+		VisibilityManager visibilityManager = plugin.getVisibilityManager();
+		AuditLog auditLog = plugin.getAuditLog();
+		if (rules.shouldHide(player, world, gameMode, blockY)) {
+			if (!hiddenByRules.contains(uuid) && visibilityManager.getVisibility(webApp, uuid)) {
+				auditLog.runAs(AuditLog.Cause.RULES, () -> visibilityManager.setVisibility(webApp, uuid, false));
+				hiddenByRules.add(uuid);
+				saveAsync();
+				plugin.getConfigManager().debugLog("Player %s was hidden by a rule", player.getName());
+			}
+		} else if (hiddenByRules.remove(uuid)) {
+			saveAsync();
+			auditLog.runAs(AuditLog.Cause.RULES, () -> visibilityManager.setVisibility(webApp, uuid, true));
+			plugin.getConfigManager().debugLog("Player %s is no longer hidden by a rule", player.getName());
+		}
+		plugin.getStats().record(Stats.Operation.RULES, start);
+	}
+
+	private void saveAsync() {
+		plugin.getTaskScheduler().runAsync(this::save);
+	}
+
+	/**
+	 * Write the players that a rule hid to disk
+	 */
+	public synchronized void save() {
+		// Writing what is in memory would lose what is in a file that couldn't be read
+		if (!loaded) return;
+
+		YamlConfiguration yaml = new YamlConfiguration();
+		List<String> hidden = new ArrayList<>();
+		for (UUID uuid : hiddenByRules) {
+			hidden.add(uuid.toString());
+		}
+		yaml.set("hidden", hidden);
+
+		try {
+			Files.createDirectories(file.getParent());
+			Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+			Files.writeString(temp, yaml.saveToString(), StandardCharsets.UTF_8);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			plugin.getLogger().log(Level.WARNING, "Could not save " + file.getFileName(), e);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.bukkit.GameMode;
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+import org.bukkit.metadata.MetadataValue;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The automatic visibility rules from the config, compiled into an array of checks.
+ * Only the rules that are actually configured end up in the array, so players are only ever checked against those.
+ * <p>
+ * The state to check is passed in explicitly, because events like a game mode change
+ * happen before the player itself has the new state.
+ */
+public final class VisibilityRules {
+	private static final VisibilityRules NONE = new VisibilityRules(new Rule[0], false, false);
+
+	private final Rule[] rules;
+	private final boolean heightDependent;
+	private final boolean vanishDependent;
+
+	private VisibilityRules(Rule[] rules, boolean heightDependent, boolean vanishDependent) {
+		this.rules = rules;
+		this.heightDependent = heightDependent;
+		this.vanishDependent = vanishDependent;
+	}
+
+	/**
+	 * Compile the rules in a config section
+	 * @param section The <code>rules</code> section of the config, or <code>null</code> if there is none
+	 * @return The compiled rules
+	 */
+	public static VisibilityRules compile(@Nullable ConfigurationSection section) {
+		if (section == null) return NONE;
+
+		List<Rule> rules = new ArrayList<>();
+		boolean heightDependent = false;
+		boolean vanishDependent = false;
+
+		Set<String> hiddenWorlds = Set.copyOf(section.getStringList("hidden-worlds"));
+		if (!hiddenWorlds.isEmpty()) {
+			rules.add((player, world, gameMode, blockY) -> hiddenWorlds.contains(world.getName()));
+		}
+
+		if (section.getBoolean("hide-spectators", false)) {
+			rules.add((player, world, gameMode, blockY) -> gameMode == GameMode.SPECTATOR);
+		}
+
+		if (section.getBoolean("hide-vanished", false)) {
+			rules.add((player, world, gameMode, blockY) -> isVanished(player));
+			vanishDependent = true;
+		}
+
+		if (section.isInt("hide-above-y")) {
+			int above = section.getInt("hide-above-y");
+			rules.add((player, world, gameMode, blockY) -> blockY > above);
+			heightDependent = true;
+		}
+
+		if (section.isInt("hide-below-y")) {
+			int below = section.getInt("hide-below-y");
+			rules.add((player, world, gameMode, blockY) -> blockY < below);
+			heightDependent = true;
+		}
+
+		if (rules.isEmpty()) return NONE;
+		return new VisibilityRules(rules.toArray(new Rule[0]), heightDependent, vanishDependent);
+	}
+
+	/**
+	 * @return Whether there are no rules at all, so nothing needs to be checked
+	 */
+	public boolean isEmpty() {
+		return rules.length == 0;
+	}
+
+	/**
+	 * @return Whether any rule depends on the player's height, so movement needs to be checked
+	 */
+	public boolean isHeightDependent() {
+		return heightDependent;
+	}
+
+	/**
+	 * @return Whether any rule depends on players being vanished, which has no event, so players need to be checked on a timer
+	 */
+	public boolean isVanishDependent() {
+		return vanishDependent;
+	}
+
+	/**
+	 * Check whether any rule says the player should be hidden
+	 * @param player The player
+	 * @param world The world the player is (about to be) in
+	 * @param gameMode The game mode the player (is about to) have
+	 * @param blockY The block Y coordinate the player is (about to be) at
+	 * @return Whether the player should be hidden from the map
+	 */
+	public boolean shouldHide(Player player, World world, GameMode gameMode, int blockY) {
+		for (Rule rule : rules) {
+			if (rule.matches(player, world, gameMode, blockY)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check the player's current state against the rules
+	 * @param player The player
+	 * @return Whether the player should be hidden from the map
+	 */
+	public boolean shouldHide(Player player) {
+		return !isEmpty() && shouldHide(player, player.getWorld(), player.getGameMode(), player.getLocation().getBlockY());
+	}
+
+	/**
+	 * Vanish plugins like EssentialsX, SuperVanish and PremiumVanish mark vanished players with this metadata
+	 */
+	private static boolean isVanished(Player player) {
+		for (MetadataValue value : player.getMetadata("vanished")) {
+			if (value.asBoolean()) return true;
+		}
+		return false;
+	}
+
+	@FunctionalInterface
+	private interface Rule {
+		boolean matches(Player player, World world, GameMode gameMode, int blockY);
+	}
+}
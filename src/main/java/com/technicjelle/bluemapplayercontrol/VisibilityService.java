@@ -0,0 +1,82 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Lets other plugins control and observe the visibility of players on the map, without going through the command.
+ * Get it from Bukkit's services manager:
+ * <pre>{@code
+ * VisibilityService service = Bukkit.getServicesManager().load(VisibilityService.class);
+ * }</pre>
+ * All methods can be called from any thread.
+ */
+public interface VisibilityService {
+	/**
+	 * Set the visibility of players on the map.
+	 * Changes from all calls made during the same tick are applied together, in a single batch.
+	 * If the same player is changed more than once before then, the last change wins.
+	 * The change is permanent, so it also cancels any temporary change of the players that hasn't expired yet.
+	 * @param players The players' UUIDs
+	 * @param visible Whether the players should be visible on the map
+	 * @return A future that completes on the global region once the changes have been applied,
+	 * or completes exceptionally if BlueMap is not loaded
+	 */
+	CompletableFuture<Void> setVisible(Collection<UUID> players, boolean visible);
+
+	/**
+	 * Set the visibility of a player on the map
+	 * @param player The player's UUID
+	 * @param visible Whether the player should be visible on the map
+	 * @return A future that completes once the change has been applied
+	 * @see #setVisible(Collection, boolean)
+	 */
+	default CompletableFuture<Void> setVisible(UUID player, boolean visible) {
+		return setVisible(List.of(player), visible);
+	}
+
+	/**
+	 * Set the visibility of players on the map for a while, after which it is changed back.
+	 * If something else changes a player's visibility in the meantime, that change is kept.
+	 * The change is remembered across restarts.
+	 * @param players The players' UUIDs
+	 * @param visible Whether the players should be visible on the map
+	 * @param duration How long until the change is undone
+	 * @return A future that completes once the changes have been applied
+	 * @see #setVisible(Collection, boolean)
+	 */
+	CompletableFuture<Void> setVisible(Collection<UUID> players, boolean visible, Duration duration);
+
+	/**
+	 * Get the visibility of a player, without asking BlueMap.
+	 * Only changes made through this plugin are known; other players are reported as visible.
+	 * @param player The player's UUID
+	 * @return Whether the player is visible on the map
+	 */
+	boolean isVisible(UUID player);
+
+	/**
+	 * Get notified of every visibility change, including the ones made with commands
+	 * @param listener The listener to add
+	 */
+	void addListener(VisibilityListener listener);
+
+	/**
+	 * @param listener The listener to remove
+	 */
+	void removeListener(VisibilityListener listener);
+
+	@FunctionalInterface
+	interface VisibilityListener {
+		/**
+		 * Called on the thread that made the change, after it has been applied to BlueMap.
+		 * Only called when the visibility actually changed.
+		 * @param player The player's UUID
+		 * @param visible Whether the player is now visible on the map
+		 */
+		void onVisibilityChange(UUID player, boolean visible);
+	}
+}
@@ -0,0 +1,132 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import de.bluecolored.bluemap.api.BlueMapAPI;
+import de.bluecolored.bluemap.api.WebApp;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The {@link VisibilityService} that is registered with Bukkit.
+ * <p>
+ * Requested changes are collected in a map, so only the last change per player is kept,
+ * and applied one tick later in a single batch on the global region, like the {@link JoinVisibilityQueue} does.
+ * The {@link AuditLog.Cause} of every change is kept along with it, so the audit log knows who asked for it.
+ */
+class VisibilityServiceProvider implements VisibilityService {
+	private final BlueMapPlayerControl plugin;
+	private final Map<UUID, Change> pending = new ConcurrentHashMap<>();
+	private final Queue<CompletableFuture<Void>> waiting = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean applyScheduled = new AtomicBoolean();
+
+	VisibilityServiceProvider(BlueMapPlayerControl plugin) {
+		this.plugin = plugin;
+	}
+
+	@Override
+	public CompletableFuture<Void> setVisible(Collection<UUID> players, boolean visible) {
+		// A permanent change, so a temporary change of the same players must not undo it later
+		plugin.getTimedVisibility().cancel(players);
+		return queue(players, visible);
+	}
+
+	@Override
+	public CompletableFuture<Void> setVisible(Collection<UUID> players, boolean visible, Duration duration) {
+		plugin.getTimedVisibility().add(players, visible, System.currentTimeMillis() + duration.toMillis());
+		return queue(players, visible);
+	}
+
+	/**
+	 * Undo temporary changes that have expired.
+	 * Unlike a permanent change, this leaves temporary changes that were made in the meantime alone.
+	 */
+	CompletableFuture<Void> undoExpired(Collection<UUID> players, boolean visible) {
+		return queue(players, visible);
+	}
+
+	private CompletableFuture<Void> queue(Collection<UUID> players, boolean visible) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		Change change = new Change(visible, plugin.getAuditLog().getCause());
+		for (UUID player : players) {
+			pending.put(player, change);
+		}
+		// Added after the changes, so a batch that picks up this future also picks up its changes
+		waiting.add(future);
+
+		if (applyScheduled.compareAndSet(false, true)) {
+			// Changes made during startup wait for the stored visibilities, so loading them doesn't undo the changes
+			plugin.whenReady(() -> plugin.getTaskScheduler().runGlobal(this::apply, 1));
+		}
+		return future;
+	}
+
+	@Override
+	public boolean isVisible(UUID player) {
+		return plugin.getVisibilityManager().isVisible(player);
+	}
+
+	@Override
+	public void addListener(VisibilityListener listener) {
+		plugin.getVisibilityManager().addListener(listener);
+	}
+
+	@Override
+	public void removeListener(VisibilityListener listener) {
+		plugin.getVisibilityManager().removeListener(listener);
+	}
+
+	private void apply() {
+		// Reset first, so calls made while applying schedule a new batch
+		applyScheduled.set(false);
+
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		CompletableFuture<Void> future;
+		while ((future = waiting.poll()) != null) {
+			futures.add(future);
+		}
+
+		List<Map.Entry<UUID, Change>> changes = new ArrayList<>();
+		for (Map.Entry<UUID, Change> entry : pending.entrySet()) {
+			// If the player was changed again in the meantime, leave that newer change for the next batch
+			if (pending.remove(entry.getKey(), entry.getValue())) changes.add(entry);
+		}
+
+		Optional<BlueMapAPI> api = BlueMapAPI.getInstance();
+		if (api.isEmpty()) {
+			IllegalStateException error = new IllegalStateException("BlueMap is not loaded");
+			for (CompletableFuture<Void> waitingFuture : futures) waitingFuture.completeExceptionally(error);
+			return;
+		}
+
+		WebApp webApp = api.get().getWebApp();
+		VisibilityManager visibilityManager = plugin.getVisibilityManager();
+		AuditLog auditLog = plugin.getAuditLog();
+		for (Map.Entry<UUID, Change> entry : changes) {
+			Change change = entry.getValue();
+			auditLog.runAs(change.cause(), () -> visibilityManager.setVisibility(webApp, entry.getKey(), change.visible()));
+		}
+		plugin.getStats().recordBatch(Stats.Batch.SERVICE, changes.size());
+		if (plugin.getConfigManager().isDebugEnabled()) {
+			plugin.getConfigManager().debugLog("Applied %d visibility changes from %d service calls", changes.size(), futures.size());
+		}
+
+		for (CompletableFuture<Void> waitingFuture : futures) waitingFuture.complete(null);
+	}
+
+	/**
+	 * @param visible Whether the player should be visible on the map
+	 * @param cause Who asked for the change
+	 */
+	private record Change(boolean visible, AuditLog.Cause cause) {
+	}
+}
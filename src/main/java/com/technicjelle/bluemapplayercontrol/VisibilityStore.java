@@ -0,0 +1,291 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The plugin's own record of every player's visibility, so it survives BlueMap reloads and server restarts.
+ * <p>
+ * Entries live in an open-addressing hash table of primitive UUID halves with one state byte each.
+ * Changes only mark the store as dirty; a background thread writes the whole table to disk
+ * on a timer and once more when the plugin is disabled, so no file I/O ever happens on the caller's thread.
+ * <p>
+ * File format: the magic number, a format version, the entry count, then every UUID as two longs,
+ * followed by a bitset with one bit per entry that is set when the player is visible.
+ */
+public class VisibilityStore {
+	private static final int MAGIC = 0x424D5043; // "BMPC"
+	private static final byte FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = Integer.BYTES + Byte.BYTES + Integer.BYTES;
+
+	private static final byte EMPTY = 0;
+	private static final byte VISIBLE = 1;
+	private static final byte HIDDEN = 2;
+
+	private final Path file;
+	private final Logger logger;
+
+	private long[] mostSignificant;
+	private long[] leastSignificant;
+	private byte[] states;
+	private int size;
+	private boolean dirty;
+	/** Whether the file was read, or there was none; until then, it isn't written */
+	private volatile boolean loaded;
+
+	private @Nullable ScheduledExecutorService flushExecutor;
+
+	public VisibilityStore(Path file, Logger logger) {
+		this.file = file;
+		this.logger = logger;
+		allocate(64);
+	}
+
+	/**
+	 * Read the store from disk. Should only be called during startup.
+	 * Nothing is written until this has succeeded, so a file that couldn't be read isn't replaced.
+	 */
+	public void load() {
+		if (!Files.exists(file)) {
+			loaded = true;
+			return;
+		}
+
+		long start = System.nanoTime();
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+			if (buffer.getInt() != MAGIC || buffer.get() != FORMAT_VERSION) {
+				logger.warning("Ignoring " + file.getFileName() + ": unknown file format");
+				loaded = true;
+				return;
+			}
+
+			// Checked before allocating anything, so a damaged file can't ask for a huge or negative array
+			int count = buffer.getInt();
+			long needed = (long) count * Long.BYTES * 2 + ((count + 7L) >>> 3);
+			if (count < 0 || needed > buffer.remaining()) {
+				logger.warning("Ignoring " + file.getFileName() + ": it claims " + count + " entries, but is too short for them");
+				loaded = true;
+				return;
+			}
+			long[] msb = new long[count];
+			long[] lsb = new long[count];
+			for (int i = 0; i < count; i++) {
+				msb[i] = buffer.getLong();
+				lsb[i] = buffer.getLong();
+			}
+			byte[] visibleBits = new byte[(count + 7) >>> 3];
+			buffer.get(visibleBits);
+
+			synchronized (this) {
+				allocate(capacityFor(count));
+				for (int i = 0; i < count; i++) {
+					boolean visible = (visibleBits[i >>> 3] & (1 << (i & 7))) != 0;
+					put(msb[i], lsb[i], visible ? VISIBLE : HIDDEN);
+				}
+				dirty = false;
+			}
+			loaded = true;
+			logger.info("Loaded " + count + " player visibility entries in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+		} catch (IOException | BufferUnderflowException e) {
+			logger.log(Level.WARNING, "Could not load " + file.getFileName() + ", so it won't be written until the next start", e);
+		}
+	}
+
+	/**
+	 * Start flushing changes to disk in the background
+	 * @param intervalSeconds How often to write changes, if there are any
+	 */
+	public void startFlushing(long intervalSeconds) {
+		stopFlushing();
+		flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "BlueMapPlayerControl Visibility Store");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flushExecutor.scheduleWithFixedDelay(this::flush, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stop the background flushing and write any remaining changes.
+	 * Blocks until the file is written, so only call this from <code>onDisable</code>.
+	 */
+	public void shutdown() {
+		stopFlushing();
+		flush();
+	}
+
+	private void stopFlushing() {
+		if (flushExecutor == null) return;
+		flushExecutor.shutdown();
+		try {
+			if (!flushExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+				logger.warning("Timed out waiting for the visibility store to finish writing");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flushExecutor = null;
+	}
+
+	/**
+	 * Record a player's visibility. Only marks the store as dirty if the state actually changed.
+	 * @param player The player's UUID
+	 * @param visible Whether the player is visible on the map
+	 */
+	public synchronized void set(UUID player, boolean visible) {
+		byte previous = put(player.getMostSignificantBits(), player.getLeastSignificantBits(), visible ? VISIBLE : HIDDEN);
+		if (previous != (visible ? VISIBLE : HIDDEN)) dirty = true;
+	}
+
+	/**
+	 * @param player The player's UUID
+	 * @return The stored visibility of the player, or <code>null</code> if nothing is stored for them
+	 */
+	public synchronized @Nullable Boolean get(UUID player) {
+		int slot = find(player.getMostSignificantBits(), player.getLeastSignificantBits());
+		if (states[slot] == EMPTY) return null;
+		return states[slot] == VISIBLE;
+	}
+
+	/**
+	 * @return The number of players in the store
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Call the consumer for every stored player.
+	 * The store is locked while iterating, so the consumer must not call back into it.
+	 * @param consumer The consumer to call
+	 */
+	public synchronized void forEach(EntryConsumer consumer) {
+		for (int i = 0; i < states.length; i++) {
+			if (states[i] != EMPTY) {
+				consumer.accept(new UUID(mostSignificant[i], leastSignificant[i]), states[i] == VISIBLE);
+			}
+		}
+	}
+
+	/**
+	 * Write the store to disk, if anything changed since the last write
+	 */
+	public void flush() {
+		// Writing what is in memory would lose what is in a file that couldn't be read
+		if (!loaded) return;
+
+		long[] msb;
+		long[] lsb;
+		byte[] visibleBits;
+		int count;
+
+		// Only copy under the lock; the actual writing happens without holding it
+		synchronized (this) {
+			if (!dirty) return;
+			count = size;
+			msb = new long[count];
+			lsb = new long[count];
+			visibleBits = new byte[(count + 7) >>> 3];
+			int entry = 0;
+			for (int i = 0; i < states.length; i++) {
+				if (states[i] == EMPTY) continue;
+				msb[entry] = mostSignificant[i];
+				lsb[entry] = leastSignificant[i];
+				if (states[i] == VISIBLE) visibleBits[entry >>> 3] |= (byte) (1 << (entry & 7));
+				entry++;
+			}
+			dirty = false;
+		}
+
+		try {
+			Files.createDirectories(file.getParent());
+			Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+			try (OutputStream fileStream = Files.newOutputStream(temp);
+				 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, HEADER_SIZE + count * 16 + visibleBits.length))) {
+				out.writeInt(MAGIC);
+				out.writeByte(FORMAT_VERSION);
+				out.writeInt(count);
+				for (int i = 0; i < count; i++) {
+					out.writeLong(msb[i]);
+					out.writeLong(lsb[i]);
+				}
+				out.write(visibleBits);
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			synchronized (this) {
+				dirty = true;
+			}
+			logger.log(Level.WARNING, "Could not save " + file.getFileName(), e);
+		}
+	}
+
+	private void allocate(int capacity) {
+		mostSignificant = new long[capacity];
+		leastSignificant = new long[capacity];
+		states = new byte[capacity];
+		size = 0;
+	}
+
+	private static int capacityFor(int count) {
+		// Keep the table at most half full
+		return Math.max(64, Integer.highestOneBit(Math.max(1, count) * 2 - 1) << 1);
+	}
+
+	private int find(long msb, long lsb) {
+		int mask = states.length - 1;
+		long hash = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+		int slot = (int) (hash ^ (hash >>> 32)) & mask;
+		while (states[slot] != EMPTY && (mostSignificant[slot] != msb || leastSignificant[slot] != lsb)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private byte put(long msb, long lsb, byte state) {
+		int slot = find(msb, lsb);
+		byte previous = states[slot];
+		if (previous == EMPTY) {
+			if ((size + 1) * 2 > states.length) {
+				grow();
+				slot = find(msb, lsb);
+			}
+			mostSignificant[slot] = msb;
+			leastSignificant[slot] = lsb;
+			size++;
+		}
+		states[slot] = state;
+		return previous;
+	}
+
+	private void grow() {
+		long[] oldMsb = mostSignificant;
+		long[] oldLsb = leastSignificant;
+		byte[] oldStates = states;
+		allocate(oldStates.length * 2);
+		for (int i = 0; i < oldStates.length; i++) {
+			if (oldStates[i] != EMPTY) put(oldMsb[i], oldLsb[i], oldStates[i]);
+		}
+	}
+
+	@FunctionalInterface
+	public interface EntryConsumer {
+		void accept(UUID player, boolean visible);
+	}
+}
@@ -0,0 +1,220 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the visibilities on several servers the same, like the backend servers behind a proxy.
+ * <p>
+ * Every local change is stamped with a hybrid clock, which follows the wall clock but never goes backwards,
+ * and never behind a stamp it has seen from another server. Changes made during the same tick are sent together in one message.
+ * When two servers change the same player at about the same time, the change with the highest stamp wins on every server,
+ * so they all end up agreeing, whichever order the messages arrive in.
+ * <p>
+ * Messages may get lost while a server can't reach the others, so whenever the transport (re)connects,
+ * the server sends everything it knows, and asks the others to do the same.
+ * <p>
+ * Nothing in here depends on the server, so two nodes can be connected with a {@link LoopbackSyncTransport} in the same process.
+ */
+public class VisibilitySync implements VisibilityService.VisibilityListener, SyncTransport.Receiver {
+	private final SyncTransport transport;
+	private final Applier applier;
+	private final Executor applyExecutor;
+	private final Executor flushExecutor;
+	private final Stats stats;
+	private final Logger logger;
+	/** Random, so a restarted server doesn't mistake its own old messages for someone else's */
+	private final long node = ThreadLocalRandom.current().nextLong();
+	/** Set while remote changes are being applied, so they aren't sent back out as local changes */
+	private final ThreadLocal<Boolean> applyingRemote = ThreadLocal.withInitial(() -> false);
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	// Guarded by this
+	private final Map<UUID, SyncMessage.Entry> latest = new HashMap<>();
+	private final Map<UUID, SyncMessage.Entry> outgoing = new LinkedHashMap<>();
+	private long clock;
+
+	/**
+	 * @param transport Carries the messages to the other servers
+	 * @param applier Applies changes from other servers locally
+	 * @param applyExecutor Runs the applier, like on the global region
+	 * @param flushExecutor Sends the local changes, after waiting a little to collect more of them
+	 * @param stats Where to record the size of the batches from other servers
+	 * @param logger Where to log messages that can't be read
+	 */
+	public VisibilitySync(SyncTransport transport, Applier applier, Executor applyExecutor, Executor flushExecutor, Stats stats, Logger logger) {
+		this.transport = transport;
+		this.applier = applier;
+		this.applyExecutor = applyExecutor;
+		this.flushExecutor = flushExecutor;
+		this.stats = stats;
+		this.logger = logger;
+	}
+
+	/**
+	 * Take over the visibilities that were stored before the server started, so the snapshot on connect includes them.
+	 * Their stamps are unknown, so they get the oldest stamp there is: a server that has any change of a player keeps it,
+	 * and servers that have none take the stored one. Should be called before {@link #start()}.
+	 * @param store The stored visibilities
+	 */
+	public void seed(VisibilityStore store) {
+		synchronized (this) {
+			store.forEach((player, visible) -> latest.putIfAbsent(player, new SyncMessage.Entry(player, visible, 0, node)));
+		}
+	}
+
+	/**
+	 * Connect to the other servers
+	 */
+	public void start() {
+		transport.start(this);
+	}
+
+	/**
+	 * Disconnect from the other servers. Local changes that weren't sent yet are dropped;
+	 * the other servers get them from the snapshot when this server connects again.
+	 */
+	public void close() {
+		transport.close();
+	}
+
+	/**
+	 * @return The ID of this node in the messages
+	 */
+	public long getNode() {
+		return node;
+	}
+
+	@Override
+	public void onVisibilityChange(UUID player, boolean visible) {
+		if (applyingRemote.get()) return;
+
+		synchronized (this) {
+			SyncMessage.Entry entry = new SyncMessage.Entry(player, visible, tick(), node);
+			latest.put(player, entry);
+			outgoing.put(player, entry);
+		}
+		if (flushScheduled.compareAndSet(false, true)) {
+			flushExecutor.execute(this::flush);
+		}
+	}
+
+	private void flush() {
+		// Reset first, so changes made while sending schedule a new flush
+		flushScheduled.set(false);
+
+		List<SyncMessage.Entry> entries;
+		synchronized (this) {
+			entries = new ArrayList<>(outgoing.values());
+			outgoing.clear();
+		}
+		send(SyncMessage.Type.DELTA, entries);
+	}
+
+	@Override
+	public void onConnected() {
+		List<SyncMessage.Entry> entries;
+		synchronized (this) {
+			entries = new ArrayList<>(latest.values());
+		}
+		// Send what this server knows first, so the others already have it when they answer
+		send(SyncMessage.Type.SNAPSHOT, entries);
+		transport.send(new SyncMessage(SyncMessage.Type.SNAPSHOT_REQUEST, node, List.of()).encode());
+	}
+
+	@Override
+	public void receive(byte[] bytes) {
+		SyncMessage message = SyncMessage.decode(bytes);
+		if (message == null) {
+			logger.warning("Ignoring a sync message in an unknown format; are all servers on the same version?");
+			return;
+		}
+		// Some transports hear their own messages
+		if (message.sender() == node) return;
+
+		if (message.type() == SyncMessage.Type.SNAPSHOT_REQUEST) {
+			List<SyncMessage.Entry> entries;
+			synchronized (this) {
+				entries = new ArrayList<>(latest.values());
+			}
+			send(SyncMessage.Type.SNAPSHOT, entries);
+			return;
+		}
+
+		List<SyncMessage.Entry> accepted = new ArrayList<>();
+		synchronized (this) {
+			for (SyncMessage.Entry entry : message.entries()) {
+				clock = Math.max(clock, entry.clock());
+				if (entry.isNewerThan(latest.get(entry.player()))) {
+					latest.put(entry.player(), entry);
+					accepted.add(entry);
+				}
+			}
+		}
+		if (!accepted.isEmpty()) {
+			applyExecutor.execute(() -> apply(accepted));
+		}
+	}
+
+	private void apply(List<SyncMessage.Entry> entries) {
+		applyingRemote.set(true);
+		try {
+			int applied = 0;
+			for (SyncMessage.Entry entry : entries) {
+				// Skip changes that something newer has overtaken since they were received
+				synchronized (this) {
+					if (latest.get(entry.player()) != entry) continue;
+				}
+				applier.apply(entry.player(), entry.visible());
+				applied++;
+			}
+			stats.recordBatch(Stats.Batch.SYNC, applied);
+		} finally {
+			applyingRemote.set(false);
+		}
+	}
+
+	private void send(SyncMessage.Type type, List<SyncMessage.Entry> entries) {
+		for (int from = 0; from < entries.size(); from += SyncMessage.MAX_ENTRIES) {
+			List<SyncMessage.Entry> chunk = entries.subList(from, Math.min(entries.size(), from + SyncMessage.MAX_ENTRIES));
+			transport.send(new SyncMessage(type, node, chunk).encode());
+		}
+	}
+
+	/**
+	 * Guarded by this
+	 * @return A stamp that is later than every stamp seen so far
+	 */
+	private long tick() {
+		clock = Math.max(clock + 1, System.currentTimeMillis());
+		return clock;
+	}
+
+	@FunctionalInterface
+	public interface Applier {
+		/**
+		 * Apply a change from another server locally
+		 * @param player The player's UUID
+		 * @param visible Whether the player should be visible on the map
+		 */
+		void apply(UUID player, boolean visible);
+	}
+
+	/**
+	 * @param enabled Whether visibilities are synced at all
+	 * @param transport The name of the transport to use
+	 * @param udpBind The address to listen on with the UDP transport
+	 * @param udpPort The port to listen on with the UDP transport
+	 * @param udpPeers The addresses of the other servers for the UDP transport, as <code>host:port</code>
+	 */
+	public record Settings(boolean enabled, String transport, String udpBind, int udpPort, List<String> udpPeers) {
+	}
+}
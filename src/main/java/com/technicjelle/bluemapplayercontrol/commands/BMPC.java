@@ -1,7 +1,21 @@
 package com.technicjelle.bluemapplayercontrol.commands;
 
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.ParseResults;
+import com.mojang.brigadier.arguments.ArgumentType;
+import com.mojang.brigadier.builder.LiteralArgumentBuilder;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import com.mojang.brigadier.suggestion.Suggestion;
+import com.technicjelle.bluemapplayercontrol.AuditLog;
 import com.technicjelle.bluemapplayercontrol.BlueMapPlayerControl;
 import com.technicjelle.bluemapplayercontrol.ConfigManager;
+import com.technicjelle.bluemapplayercontrol.GroupVisibility;
+import com.technicjelle.bluemapplayercontrol.PermissionCache;
+import com.technicjelle.bluemapplayercontrol.Stats;
+import com.technicjelle.bluemapplayercontrol.TaskScheduler;
+import com.technicjelle.bluemapplayercontrol.VisibilityAction;
+import com.technicjelle.bluemapplayercontrol.VisibilityGroups;
+import com.technicjelle.bluemapplayercontrol.VisibilityManager;
 import de.bluecolored.bluemap.api.BlueMapAPI;
 import net.kyori.adventure.audience.Audience;
 import net.kyori.adventure.text.Component;
@@ -13,177 +27,429 @@ import org.bukkit.command.TabCompleter;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
 
 @SuppressWarnings("UnstableApiUsage")
 public class BMPC implements CommandExecutor, TabCompleter {
+	/** The description of the command, for the help of the server */
+	public static final String DESCRIPTION = "Control player visibility on BlueMap";
+	/** The name of the command in the fallback dispatcher, whichever label was used */
+	private static final String ROOT = "bmpc";
+	private static final DateTimeFormatter DUMP_FILE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+	private static final Pattern PLAYER_NAME_PATTERN = Pattern.compile("[A-Za-z0-9_]{1,16}");
+	private static final int HISTORY_LIMIT = 10;
+	private static final DateTimeFormatter HISTORY_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
 	
 	private final BlueMapPlayerControl plugin;
 	private final ConfigManager configManager;
+	private final CommandDispatcher<CommandSender> dispatcher = new CommandDispatcher<>();
 	
 	public BMPC(BlueMapPlayerControl plugin, ConfigManager configManager) {
 		this.plugin = plugin;
 		this.configManager = configManager;
+		dispatcher.register(buildTree(ROOT, Function.identity(), new TargetArgument(plugin.getTabCompletionIndex()), new DurationArgument()));
 	}
-
+	
+	/**
+	 * Check if Paper's Brigadier command API is available, so the command can be registered with {@link PaperCommands}
+	 * @return true if it is available
+	 */
+	public static boolean isPaperCommandApiAvailable() {
+		try {
+			Class.forName("io.papermc.paper.command.brigadier.Commands");
+			Class.forName("io.papermc.paper.plugin.lifecycle.event.types.LifecycleEvents");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Build the command tree for a command source
+	 * @param name The name of the command
+	 * @param senderOf Gets the sender from a command source
+	 * @param target The type of the target argument
+	 * @param duration The type of the duration argument
+	 * @return The tree
+	 */
+	<S> LiteralArgumentBuilder<S> buildTree(String name, Function<S, CommandSender> senderOf, ArgumentType<String> target, ArgumentType<Duration> duration) {
+		return CommandTree.build(name, this, plugin.getPermissionCache(), senderOf, target, duration, plugin.getTabCompletionIndex());
+	}
+	
+	/**
+	 * Runs the command through the tree, for labels that aren't registered with Paper's command API
+	 */
 	@Override
 	public boolean onCommand(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label, @NotNull String[] args) {
-		// Debug logging
-		configManager.debugLog("Command executed by %s with args: %s", sender.getName(), String.join(" ", args));
-		
-		// Check if BlueMap is available
-		if (!BlueMapAPI.getInstance().isPresent()) {
-			configManager.debugLog("BlueMap API not available");
-			sendMessage(sender, "errors.bluemap_not_loaded");
-			return true;
+		String input = args.length == 0 ? ROOT : ROOT + " " + String.join(" ", args);
+		try {
+			dispatcher.execute(input, sender);
+		} catch (CommandSyntaxException e) {
+			configManager.debugLog("Could not parse command '%s': %s", input, e.getMessage());
+			sendMessage(sender, "errors.invalid_usage");
 		}
-		
-		BlueMapAPI api = BlueMapAPI.getInstance().get();
-		configManager.debugLog("BlueMap API loaded successfully");
-		
-		// Handle help command
-		if (args.length == 0 || (args.length == 1 && args[0].equalsIgnoreCase("help"))) {
-			sendHelpMessage(sender);
-			return true;
+		return true;
+	}
+	
+	/**
+	 * Completes the command with the tree, for labels that aren't registered with Paper's command API
+	 */
+	@Override
+	public List<String> onTabComplete(@NotNull CommandSender sender, @NotNull Command command, @NotNull String alias, String[] args) {
+		ParseResults<CommandSender> parse = dispatcher.parse(ROOT + " " + String.join(" ", args), sender);
+		List<Suggestion> suggestions = dispatcher.getCompletionSuggestions(parse).join().getList();
+		List<String> completions = new ArrayList<>(suggestions.size());
+		for (Suggestion suggestion : suggestions) {
+			completions.add(suggestion.getText());
 		}
-		
-		// Handle reload command
-		if (args.length == 1 && args[0].equalsIgnoreCase("reload")) {
-			if (!sender.hasPermission("bmpc.reload")) {
-				configManager.debugLog("Sender %s lacks permission bmpc.reload", sender.getName());
-				sendMessage(sender, "errors.no_permission");
-				return true;
+		return completions;
+	}
+	
+	/**
+	 * Run a subcommand that the tree has parsed
+	 * @param sender The sender of the command
+	 * @param input The whole command, for the debug log
+	 * @param handler The subcommand
+	 */
+	void execute(CommandSender sender, String input, Consumer<BlueMapAPI> handler) {
+		long start = System.nanoTime();
+		try {
+			// Debug logging
+			if (configManager.isDebugEnabled()) {
+				configManager.debugLog("Command executed by %s: %s", sender.getName(), input);
 			}
 			
-			configManager.debugLog("Reloading configuration...");
-			configManager.reload();
+			// The stored visibilities are loaded in the background during startup
+			if (!plugin.isReady()) {
+				configManager.debugLog("Stored data is still loading");
+				sendMessage(sender, "errors.still_loading");
+				return;
+			}
+			
+			// Check if BlueMap is available
+			Optional<BlueMapAPI> api = BlueMapAPI.getInstance();
+			if (api.isEmpty()) {
+				configManager.debugLog("BlueMap API not available");
+				sendMessage(sender, "errors.bluemap_not_loaded");
+				return;
+			}
+			
+			configManager.debugLog("BlueMap API loaded successfully");
+			handler.accept(api.get());
+		} finally {
+			plugin.getStats().record(Stats.Operation.COMMAND_DISPATCH, start);
+		}
+	}
+	
+	void help(CommandSender sender) {
+		sendHelpMessage(sender);
+	}
+	
+	void reload(CommandSender sender) {
+		if (!checkPermission(sender, PermissionCache.Permission.RELOAD)) return;
+		
+		configManager.debugLog("Reloading configuration...");
+		TaskScheduler scheduler = plugin.getTaskScheduler();
+		long reloadStart = System.nanoTime();
+		configManager.reloadAsync().whenComplete((result, error) -> scheduler.runGlobal(() -> {
+			plugin.getStats().record(Stats.Operation.RELOAD, reloadStart);
+			if (error != null) {
+				sendMessage(sender, "errors.reload_failed");
+				return;
+			}
 			
 			// Re-register command with new aliases
 			plugin.registerCommand();
+			// Permissions may have been changed in the server's files as well
+			plugin.getPermissionCache().invalidateAll();
+			plugin.getVisibilityRuleEngine().evaluateAll();
+			plugin.getGroupVisibility().evaluateAll();
 			
 			sendMessage(sender, "status.config_reloaded");
-			return true;
-		}
+		}));
+	}
+	
+	void debugDump(CommandSender sender) {
+		if (!checkPermission(sender, PermissionCache.Permission.DEBUG)) return;
+		dumpDebugTrace(sender);
+	}
+	
+	void stats(CommandSender sender) {
+		if (!checkPermission(sender, PermissionCache.Permission.STATS)) return;
+		sendStats(sender);
+	}
+	
+	void history(CommandSender sender, String name) {
+		if (!checkPermission(sender, PermissionCache.Permission.HISTORY)) return;
+		sendHistory(sender, name);
+	}
+	
+	/**
+	 * @return The names of the groups from the config, to suggest them
+	 */
+	Set<String> getGroupNames() {
+		return configManager.getVisibilityGroups().getNames();
+	}
+	
+	void group(BlueMapAPI api, CommandSender sender, VisibilityAction action, String name) {
+		if (!checkPermission(sender, PermissionCache.Permission.GROUPS)) return;
 		
-		String subCommand = args[0].toLowerCase();
+		VisibilityGroups.Group group = configManager.getVisibilityGroups().get(name);
+		if (group == null) {
+			configManager.debugLog("No group named '%s'", name);
+			sendMessage(sender, "errors.group_not_found", "group", name);
+			return;
+		}
 		
-		// Handle self commands (only for players, only when no second argument)
-		if (sender instanceof Player player && args.length == 1) {
-			UUID senderUUID = player.getUniqueId();
-			
-			switch (subCommand) {
-				case "toggle":
-					if (!sender.hasPermission("bmpc.self.toggle")) {
-						sendMessage(sender, "errors.no_permission");
-						return true;
-					}
-					toggleSelf(api, sender, senderUUID);
-					return true;
-					
-				case "show":
-					if (!sender.hasPermission("bmpc.self.show")) {
-						sendMessage(sender, "errors.no_permission");
-						return true;
-					}
-					showSelf(api, sender, senderUUID);
-					return true;
-					
-				case "hide":
-					if (!sender.hasPermission("bmpc.self.hide")) {
-						sendMessage(sender, "errors.no_permission");
-						return true;
-					}
-					hideSelf(api, sender, senderUUID);
-					return true;
-			}
+		// A group is changed as one batch, like commands on many players
+		if (!plugin.getToggleLimiter().tryAcquireBulk(sender)) {
+			configManager.debugLog("Sender %s is rate limited for bulk commands", sender.getName());
+			sendMessage(sender, "errors.rate_limited");
+			return;
 		}
 		
-		// Handle other player commands (requires second argument)
-		if (args.length < 2) {
+		GroupVisibility groupVisibility = plugin.getGroupVisibility();
+		plugin.getTaskScheduler().runGlobal(() -> runAs(sender, () -> {
+			boolean hidden = switch (action) {
+				case TOGGLE -> !groupVisibility.isHidden(group.name());
+				case SHOW -> false;
+				case HIDE -> true;
+			};
+			int changed = groupVisibility.setHidden(api.getWebApp(), group.name(), hidden);
+			sendMessage(sender, hidden ? "status.group_invisible" : "status.group_visible",
+					"group", group.name(),
+					"count", String.valueOf(changed));
+		}));
+	}
+	
+	/**
+	 * Check a permission, and tell the sender if they don't have it
+	 * @param sender The sender of the command
+	 * @param permission The permission the subcommand needs
+	 * @return Whether the sender has the permission
+	 */
+	private boolean checkPermission(CommandSender sender, PermissionCache.Permission permission) {
+		if (plugin.getPermissionCache().has(sender, permission)) return true;
+		
+		configManager.debugLog("Sender %s lacks permission %s", sender.getName(), permission);
+		sendMessage(sender, "errors.no_permission");
+		return false;
+	}
+	
+	void self(BlueMapAPI api, CommandSender sender, VisibilityAction action) {
+		// Only players have a visibility of their own, others need to name a target
+		if (!(sender instanceof Player player)) {
 			configManager.debugLog("Not enough arguments for other player command");
 			sendMessage(sender, "errors.invalid_usage");
-			return true;
+			return;
+		}
+		if (!plugin.getPermissionCache().has(sender, action.getSelfPermission())) {
+			sendMessage(sender, "errors.no_permission");
+			return;
+		}
+		if (!plugin.getToggleLimiter().tryAcquire(sender)) {
+			configManager.debugLog("Player %s is rate limited", sender.getName());
+			sendMessage(sender, "errors.rate_limited");
+			return;
+		}
+		
+		UUID senderUUID = player.getUniqueId();
+		plugin.getToggleLimiter().submit(player, action, combined -> runAs(sender, () -> {
+			plugin.getTimedVisibility().cancel(List.of(senderUUID));
+			switch (combined == null ? currentAction(api, senderUUID) : combined) {
+				case TOGGLE -> toggleSelf(api, sender, senderUUID);
+				case SHOW -> showSelf(api, sender, senderUUID);
+				case HIDE -> hideSelf(api, sender, senderUUID);
+			}
+		}));
+	}
+	
+	void others(BlueMapAPI api, CommandSender sender, VisibilityAction action, String targetName, @Nullable Duration duration) {
+		// Permissions are checked once for the whole selection
+		if (!plugin.getPermissionCache().has(sender, action.getOthersPermission())) {
+			configManager.debugLog("Sender %s lacks permission %s", sender.getName(), action.getOthersPermission());
+			sendMessage(sender, "errors.no_permission");
+			return;
 		}
 		
-		String targetName = args[1];
 		configManager.debugLog("Looking for target player: %s", targetName);
 		
-		List<Entity> targets = Bukkit.selectEntities(sender, targetName);
-		configManager.debugLog("Found %d entities matching '%s'", targets.size(), targetName);
+		List<Entity> targets = PlayerSelector.select(sender, targetName);
+		if (configManager.isDebugEnabled()) {
+			configManager.debugLog("Found %d entities matching '%s'", targets.size(), targetName);
+		}
 		
-		// Filter to only players
-		List<Player> playerTargets = new ArrayList<>();
-		for (Entity target : targets) {
-			if (target instanceof Player player) {
-				playerTargets.add(player);
-				configManager.debugLog("Added player target: %s (UUID: %s)", player.getName(), player.getUniqueId());
-			}
+		// Players that aren't online are looked up by name, so they can be changed before they join
+		if (targets.isEmpty() && duration == null && PLAYER_NAME_PATTERN.matcher(targetName).matches()) {
+			setOffline(api, sender, action, targetName);
+			return;
 		}
 		
-		if (playerTargets.isEmpty()) {
-			configManager.debugLog("No players found matching '%s'", targetName);
-			sendMessage(sender, "errors.player_not_found", "player", targetName);
-			return true;
+		// A duration makes the change temporary
+		if (duration != null) {
+			setVisibleFor(sender, targets, action == VisibilityAction.SHOW, duration, targetName, DurationArgument.format(duration));
+			return;
 		}
 		
-		for (Player targetPlayer : playerTargets) {
-			configManager.debugLog("Processing target player: %s (UUID: %s)", targetPlayer.getName(), targetPlayer.getUniqueId());
-			
-			// Check if trying to target self
-			if (sender instanceof Player && targetPlayer.equals(sender)) {
+		// A single target gets the detailed messages
+		if (targets.size() == 1 && targets.get(0) instanceof Player targetPlayer) {
+			if (targetPlayer.equals(sender)) {
 				configManager.debugLog("Player %s tried to target themselves, skipping", sender.getName());
 				sendMessage(sender, "errors.cannot_target_self");
-				continue;
+				return;
 			}
 			
-			configManager.debugLog("Executing command '%s' on player %s", subCommand, targetPlayer.getName());
-			
-			switch (subCommand) {
-				case "toggle":
-					if (!sender.hasPermission("bmpc.others.toggle")) {
-						configManager.debugLog("Sender %s lacks permission bmpc.others.toggle", sender.getName());
-						sendMessage(sender, "errors.no_permission");
-						continue;
-					}
-					toggleOther(api, sender, targetPlayer);
-					break;
-					
-				case "show":
-					if (!sender.hasPermission("bmpc.others.show")) {
-						configManager.debugLog("Sender %s lacks permission bmpc.others.show", sender.getName());
-						sendMessage(sender, "errors.no_permission");
-						continue;
-					}
-					showOther(api, sender, targetPlayer);
-					break;
-					
-				case "hide":
-					if (!sender.hasPermission("bmpc.others.hide")) {
-						configManager.debugLog("Sender %s lacks permission bmpc.others.hide", sender.getName());
-						sendMessage(sender, "errors.no_permission");
-						continue;
-					}
-					hideOther(api, sender, targetPlayer);
-					break;
-					
-				default:
-					configManager.debugLog("Unknown subcommand: %s", subCommand);
-					sendMessage(sender, "errors.invalid_usage");
-					break;
+			if (!plugin.getToggleLimiter().tryAcquire(sender)) {
+				configManager.debugLog("Sender %s is rate limited", sender.getName());
+				sendMessage(sender, "errors.rate_limited");
+				return;
 			}
+			
+			configManager.debugLog("Executing command '%s' on player %s", action.getName(), targetPlayer.getName());
+			plugin.getToggleLimiter().submit(targetPlayer, action, combined -> runAs(sender, () -> {
+				plugin.getTimedVisibility().cancel(List.of(targetPlayer.getUniqueId()));
+				switch (combined == null ? currentAction(api, targetPlayer.getUniqueId()) : combined) {
+					case TOGGLE -> toggleOther(api, sender, targetPlayer);
+					case SHOW -> showOther(api, sender, targetPlayer);
+					case HIDE -> hideOther(api, sender, targetPlayer);
+				}
+			}));
+			return;
 		}
 		
-		return true;
+		// Commands on many players have their own, smaller budget
+		if (!plugin.getToggleLimiter().tryAcquireBulk(sender)) {
+			configManager.debugLog("Sender %s is rate limited for bulk commands", sender.getName());
+			sendMessage(sender, "errors.rate_limited");
+			return;
+		}
+		
+		Player exclude = sender instanceof Player player ? player : null;
+		plugin.getTaskScheduler().runGlobal(() -> runAs(sender, () -> {
+			List<UUID> players = new ArrayList<>(targets.size());
+			for (Entity target : targets) {
+				if (target instanceof Player player && !player.equals(exclude)) players.add(player.getUniqueId());
+			}
+			plugin.getTimedVisibility().cancel(players);
+			VisibilityManager.BulkResult result = plugin.getVisibilityManager().apply(api.getWebApp(), targets, action, exclude);
+			
+			if (result.changed() == 0 && result.skipped() == 0) {
+				configManager.debugLog("No players found matching '%s'", targetName);
+				sendMessage(sender, "errors.player_not_found", "player", targetName);
+				return;
+			}
+			
+			sendMessage(sender, "status.bulk_result",
+					"visible", String.valueOf(result.visible()),
+					"invisible", String.valueOf(result.invisible()),
+					"skipped", String.valueOf(result.skipped()));
+		}));
 	}
 
+	private void setOffline(BlueMapAPI api, CommandSender sender, VisibilityAction action, String name) {
+		if (!plugin.getToggleLimiter().tryAcquire(sender)) {
+			configManager.debugLog("Sender %s is rate limited", sender.getName());
+			sendMessage(sender, "errors.rate_limited");
+			return;
+		}
+		
+		configManager.debugLog("Looking up offline player %s", name);
+		plugin.getPlayerNameCache().resolve(name).whenComplete((uuid, error) -> plugin.getTaskScheduler().runGlobal(() -> runAs(sender, () -> {
+			if (error != null || uuid == null) {
+				configManager.debugLog("No player found with name '%s'", name);
+				sendMessage(sender, "errors.player_not_found", "player", name);
+				return;
+			}
+			
+			plugin.getTimedVisibility().cancel(List.of(uuid));
+			VisibilityManager visibilityManager = plugin.getVisibilityManager();
+			boolean visible = switch (action) {
+				case TOGGLE -> !visibilityManager.getVisibility(api.getWebApp(), uuid);
+				case SHOW -> true;
+				case HIDE -> false;
+			};
+			visibilityManager.setVisibility(api.getWebApp(), uuid, visible);
+			
+			// If they came online in the meantime, this was just a normal change
+			if (Bukkit.getPlayer(uuid) != null) {
+				sendMessage(sender, visible ? "status.other_visible" : "status.other_invisible", "player", name);
+				return;
+			}
+			plugin.getVisibilityPresets().put(uuid, visible);
+			sendMessage(sender, visible ? "status.offline_visible" : "status.offline_invisible", "player", name);
+		})));
+	}
+	
+	private void setVisibleFor(CommandSender sender, List<Entity> targets, boolean visible, Duration duration, String targetName, String durationText) {
+		boolean allowed = targets.size() > 1
+				? plugin.getToggleLimiter().tryAcquireBulk(sender)
+				: plugin.getToggleLimiter().tryAcquire(sender);
+		if (!allowed) {
+			configManager.debugLog("Sender %s is rate limited", sender.getName());
+			sendMessage(sender, "errors.rate_limited");
+			return;
+		}
+		
+		List<UUID> players = new ArrayList<>(targets.size());
+		for (Entity target : targets) {
+			if (target instanceof Player player && !player.equals(sender)) players.add(player.getUniqueId());
+		}
+		if (players.isEmpty()) {
+			configManager.debugLog("No players found matching '%s'", targetName);
+			sendMessage(sender, "errors.player_not_found", "player", targetName);
+			return;
+		}
+		
+		// The service remembers who asked for the change, for the audit log
+		runAs(sender, () -> plugin.getVisibilityService().setVisible(players, visible, duration).whenComplete((result, error) -> {
+			if (error != null) {
+				sendMessage(sender, "errors.bluemap_not_loaded");
+				return;
+			}
+			sendMessage(sender, visible ? "status.timed_visible" : "status.timed_invisible",
+					"count", String.valueOf(players.size()),
+					"duration", durationText);
+		}));
+	}
+	
+	/**
+	 * Make visibility changes on behalf of the sender, so the audit log knows who made them
+	 */
+	private void runAs(CommandSender sender, Runnable action) {
+		plugin.getAuditLog().runAs(AuditLog.Cause.of(sender), action);
+	}
+	
+	/**
+	 * For when debounced actions cancelled each other out:
+	 * the action that leaves the player as they are, so the sender still gets told the player's visibility
+	 */
+	private VisibilityAction currentAction(BlueMapAPI api, UUID player) {
+		return plugin.getVisibilityManager().getVisibility(api.getWebApp(), player) ? VisibilityAction.SHOW : VisibilityAction.HIDE;
+	}
+	
 	private void toggleSelf(BlueMapAPI api, CommandSender sender, UUID senderUUID) {
-		boolean currentVisibility = api.getWebApp().getPlayerVisibility(senderUUID);
+		boolean currentVisibility = plugin.getVisibilityManager().getVisibility(api.getWebApp(), senderUUID);
 		configManager.debugLog("Player %s current visibility: %s", sender.getName(), currentVisibility);
 		
-		api.getWebApp().setPlayerVisibility(senderUUID, !currentVisibility);
+		plugin.getVisibilityManager().setVisibility(api.getWebApp(), senderUUID, !currentVisibility);
 		configManager.debugLog("Set player %s visibility to: %s", sender.getName(), !currentVisibility);
 		
 		if (!currentVisibility) {
@@ -195,21 +461,21 @@ public class BMPC implements CommandExecutor, TabCompleter {
 	
 	private void showSelf(BlueMapAPI api, CommandSender sender, UUID senderUUID) {
 		configManager.debugLog("Showing player %s on map", sender.getName());
-		api.getWebApp().setPlayerVisibility(senderUUID, true);
+		plugin.getVisibilityManager().setVisibility(api.getWebApp(), senderUUID, true);
 		sendMessage(sender, "status.visible");
 	}
 
 	private void hideSelf(BlueMapAPI api, CommandSender sender, UUID senderUUID) {
 		configManager.debugLog("Hiding player %s from map", sender.getName());
-		api.getWebApp().setPlayerVisibility(senderUUID, false);
+		plugin.getVisibilityManager().setVisibility(api.getWebApp(), senderUUID, false);
 		sendMessage(sender, "status.invisible");
 	}
 	
 	private void toggleOther(BlueMapAPI api, CommandSender sender, Player targetPlayer) {
-		boolean currentVisibility = api.getWebApp().getPlayerVisibility(targetPlayer.getUniqueId());
+		boolean currentVisibility = plugin.getVisibilityManager().getVisibility(api.getWebApp(), targetPlayer.getUniqueId());
 		configManager.debugLog("Player %s current visibility: %s", targetPlayer.getName(), currentVisibility);
 		
-		api.getWebApp().setPlayerVisibility(targetPlayer.getUniqueId(), !currentVisibility);
+		plugin.getVisibilityManager().setVisibility(api.getWebApp(), targetPlayer.getUniqueId(), !currentVisibility);
 		configManager.debugLog("Set player %s visibility to: %s", targetPlayer.getName(), !currentVisibility);
 		
 		if (!currentVisibility) {
@@ -221,60 +487,114 @@ public class BMPC implements CommandExecutor, TabCompleter {
 
 	private void showOther(BlueMapAPI api, CommandSender sender, Player targetPlayer) {
 		configManager.debugLog("Showing player %s on map", targetPlayer.getName());
-		api.getWebApp().setPlayerVisibility(targetPlayer.getUniqueId(), true);
+		plugin.getVisibilityManager().setVisibility(api.getWebApp(), targetPlayer.getUniqueId(), true);
 		sendMessage(sender, "status.other_visible", "player", targetPlayer.getDisplayName());
 	}
 
 	private void hideOther(BlueMapAPI api, CommandSender sender, Player targetPlayer) {
 		configManager.debugLog("Hiding player %s from map", targetPlayer.getName());
-		api.getWebApp().setPlayerVisibility(targetPlayer.getUniqueId(), false);
+		plugin.getVisibilityManager().setVisibility(api.getWebApp(), targetPlayer.getUniqueId(), false);
 		sendMessage(sender, "status.other_invisible", "player", targetPlayer.getDisplayName());
 	}
 
-	@Override
-	public List<String> onTabComplete(@NotNull CommandSender sender, @NotNull Command command, @NotNull String alias, String[] args) {
-		List<String> completions = new ArrayList<>();
+	private void dumpDebugTrace(CommandSender sender) {
+		String fileName = "debug-" + DUMP_FILE_TIME_FORMAT.format(LocalDateTime.now()) + ".log";
+		Path file = plugin.getDataFolder().toPath().resolve(fileName);
 		
-		if (args.length == 1) {
-			// First argument: subcommands
-			completions.add("help");
-			completions.add("toggle");
-			completions.add("show");
-			completions.add("hide");
-			
-			// Add reload command if player has permission
-			if (sender.hasPermission("bmpc.reload")) {
-				completions.add("reload");
+		// Writing the file is done off the tick thread
+		plugin.getTaskScheduler().runAsync(() -> {
+			try {
+				int events = configManager.getDebugTrace().writeTo(file);
+				sendMessage(sender, "status.debug_dumped", "events", String.valueOf(events), "file", fileName);
+			} catch (IOException e) {
+				plugin.getLogger().log(Level.WARNING, "Could not write debug dump", e);
+				sendMessage(sender, "errors.debug_dump_failed");
+			}
+		});
+	}
+	
+	private void sendHistory(CommandSender sender, String name) {
+		if (!PLAYER_NAME_PATTERN.matcher(name).matches()) {
+			sendMessage(sender, "errors.player_not_found", "player", name);
+			return;
+		}
+		
+		plugin.getPlayerNameCache().resolve(name).whenComplete((uuid, error) -> {
+			if (error != null || uuid == null) {
+				sendMessage(sender, "errors.player_not_found", "player", name);
+				return;
 			}
 			
-			// Add player names if they have permission for others
-			if (sender.hasPermission("bmpc.others")) {
-				for (Player player : sender.getServer().getOnlinePlayers()) {
-					completions.add(player.getName());
+			// Reading the files is done off the tick thread
+			plugin.getTaskScheduler().runAsync(() -> {
+				List<AuditLog.Change> changes;
+				try {
+					changes = plugin.getAuditLog().getHistory(uuid, HISTORY_LIMIT);
+				} catch (IOException e) {
+					plugin.getLogger().log(Level.WARNING, "Could not read the audit log", e);
+					sendMessage(sender, "errors.history_failed");
+					return;
 				}
-			}
-		} else if (args.length == 2) {
-			// Second argument: player names (only for other player commands)
-			String subCommand = args[0].toLowerCase();
-			if (subCommand.equals("toggle") || subCommand.equals("show") || subCommand.equals("hide")) {
-				if (sender.hasPermission("bmpc.others")) {
-					for (Player player : sender.getServer().getOnlinePlayers()) {
-						completions.add(player.getName());
-					}
-					completions.add("@a");
-					completions.add("@p");
-					completions.add("@r");
-					completions.add("@s");
+				
+				if (changes.isEmpty()) {
+					sendMessage(sender, "status.history_empty", "player", name);
+					return;
 				}
-			}
+				sendMessage(sender, "status.history_header", "player", name);
+				for (AuditLog.Change change : changes) {
+					sendMessage(sender, change.visible() ? "status.history_shown" : "status.history_hidden",
+							"time", HISTORY_TIME_FORMAT.format(Instant.ofEpochMilli(change.time())),
+							"actor", describeActor(change));
+				}
+			});
+		});
+	}
+	
+	/**
+	 * @return The name of the player that made a change, or what made it if it wasn't a player
+	 */
+	private static String describeActor(AuditLog.Change change) {
+		UUID actor = change.actor();
+		if (actor != null) {
+			String name = Bukkit.getOfflinePlayer(actor).getName();
+			return name != null ? name : actor.toString();
 		}
-		
-		return completions;
+		return change.source() == AuditLog.Source.COMMAND ? "Console" : change.source().getName();
+	}
+	
+	private void sendStats(CommandSender sender) {
+		Stats stats = plugin.getStats();
+		sendMessage(sender, "status.stats_header");
+		for (Stats.Operation operation : Stats.Operation.values()) {
+			Stats.Histogram latency = stats.getLatency(operation);
+			sendMessage(sender, "status.stats_operation",
+					"operation", operation.getName(),
+					"count", String.valueOf(latency.getCount()),
+					"mean", formatNanos(latency.getMean()),
+					"p50", formatNanos(latency.getQuantile(0.5)),
+					"p99", formatNanos(latency.getQuantile(0.99)),
+					"max", formatNanos(latency.getMax()));
+		}
+		for (Stats.Batch batch : Stats.Batch.values()) {
+			Stats.Histogram size = stats.getBatchSize(batch);
+			sendMessage(sender, "status.stats_batch",
+					"batch", batch.getName(),
+					"count", String.valueOf(size.getCount()),
+					"mean", String.format(Locale.ROOT, "%.1f", size.getMean()),
+					"max", String.valueOf(size.getMax()));
+		}
+	}
+	
+	private static String formatNanos(double nanos) {
+		if (nanos >= 1_000_000) return String.format(Locale.ROOT, "%.2f ms", nanos / 1_000_000);
+		return String.format(Locale.ROOT, "%.1f µs", nanos / 1_000);
 	}
 	
 	private void sendMessage(CommandSender sender, String messageKey, String... placeholders) {
-		String message = configManager.getMessageFormatted(messageKey, placeholders);
-		sender.sendMessage(message);
+		long start = System.nanoTime();
+		Component message = configManager.getMessageComponent(sender, messageKey, placeholders);
+		plugin.getStats().record(Stats.Operation.MESSAGE_RENDER, start);
+		((Audience) sender).sendMessage(message);
 	}
 	
 	private void sendHelpMessage(CommandSender sender) {
@@ -282,7 +602,7 @@ public class BMPC implements CommandExecutor, TabCompleter {
 		String version = plugin.getDescription().getVersion();
 		
 		// Get help messages list from config as components
-		List<Component> helpMessages = configManager.getMessageComponentList("help", 
+		List<Component> helpMessages = configManager.getMessageComponentList(sender, "help", 
 			"command", commandName, "version", version);
 		
 		// Send all help messages using Audience API
@@ -0,0 +1,145 @@
+package com.technicjelle.bluemapplayercontrol.commands;
+
+import com.mojang.brigadier.Command;
+import com.mojang.brigadier.arguments.ArgumentType;
+import com.mojang.brigadier.arguments.StringArgumentType;
+import com.mojang.brigadier.builder.LiteralArgumentBuilder;
+import com.mojang.brigadier.builder.RequiredArgumentBuilder;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.suggestion.Suggestions;
+import com.mojang.brigadier.suggestion.SuggestionsBuilder;
+import com.technicjelle.bluemapplayercontrol.PermissionCache;
+import com.technicjelle.bluemapplayercontrol.VisibilityAction;
+import de.bluecolored.bluemap.api.BlueMapAPI;
+import org.bukkit.command.CommandSender;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Defines the command as a Brigadier tree, so arguments are parsed, checked and completed by the tree itself.
+ * <p>
+ * The tree is generic over the command source, because Paper's command API gives its own source,
+ * while {@link BMPC} dispatches it with the plain sender when that API isn't available.
+ * <p>
+ * Only the command itself is left out of the tree for senders without permission to use it.
+ * The subcommands check their permissions in their handlers, so senders are told what they lack, like before.
+ */
+final class CommandTree {
+	/** Clients can't show more than this many suggestions in a useful way anyway */
+	private static final int MAX_COMPLETIONS = 50;
+
+	private CommandTree() {
+	}
+
+	/**
+	 * @param name The name of the command
+	 * @param commands The handlers of the subcommands
+	 * @param permissions The permissions to check for the subcommands
+	 * @param senderOf Gets the sender from a command source
+	 * @param target The type of the target argument
+	 * @param duration The type of the duration argument
+	 * @param index The online players, to suggest their names
+	 * @return The tree
+	 */
+	static <S> LiteralArgumentBuilder<S> build(String name, BMPC commands, PermissionCache permissions, Function<S, CommandSender> senderOf,
+			ArgumentType<String> target, ArgumentType<Duration> duration, TabCompletionIndex index) {
+		LiteralArgumentBuilder<S> root = LiteralArgumentBuilder.<S>literal(name)
+				.requires(requires(permissions, senderOf, PermissionCache.Permission.USE))
+				.executes(run(commands, senderOf, (context, sender, api) -> commands.help(sender)));
+
+		root.then(LiteralArgumentBuilder.<S>literal("help")
+				.executes(run(commands, senderOf, (context, sender, api) -> commands.help(sender))));
+
+		root.then(LiteralArgumentBuilder.<S>literal("reload")
+				.executes(run(commands, senderOf, (context, sender, api) -> commands.reload(sender))));
+
+		root.then(LiteralArgumentBuilder.<S>literal("debug")
+				.then(LiteralArgumentBuilder.<S>literal("dump")
+						.executes(run(commands, senderOf, (context, sender, api) -> commands.debugDump(sender)))));
+
+		root.then(LiteralArgumentBuilder.<S>literal("stats")
+				.executes(run(commands, senderOf, (context, sender, api) -> commands.stats(sender))));
+
+		root.then(LiteralArgumentBuilder.<S>literal("history")
+				.then(RequiredArgumentBuilder.<S, String>argument("player", StringArgumentType.word())
+						.suggests((context, builder) -> permissions.has(senderOf.apply(context.getSource()), PermissionCache.Permission.HISTORY)
+								? suggestNames(index, builder)
+								: builder.buildFuture())
+						.executes(run(commands, senderOf, (context, sender, api) -> commands.history(sender, StringArgumentType.getString(context, "player"))))));
+
+		LiteralArgumentBuilder<S> group = LiteralArgumentBuilder.<S>literal("group");
+		for (VisibilityAction action : VisibilityAction.values()) {
+			group.then(LiteralArgumentBuilder.<S>literal(action.getName())
+					.then(RequiredArgumentBuilder.<S, String>argument("group", StringArgumentType.word())
+							.suggests((context, builder) -> suggestGroups(commands, builder))
+							.executes(run(commands, senderOf, (context, sender, api) -> commands.group(api, sender, action, StringArgumentType.getString(context, "group"))))));
+		}
+		root.then(group);
+
+		for (VisibilityAction action : VisibilityAction.values()) {
+			// Only senders that may change others get the names of online players
+			RequiredArgumentBuilder<S, String> targetNode = RequiredArgumentBuilder.<S, String>argument("target", target)
+					.suggests((context, builder) -> permissions.has(senderOf.apply(context.getSource()), PermissionCache.Permission.OTHERS)
+							? target.listSuggestions(context, builder)
+							: builder.buildFuture())
+					.executes(run(commands, senderOf, (context, sender, api) -> commands.others(api, sender, action, context.getArgument("target", String.class), null)));
+
+			// Only showing and hiding can be temporary
+			if (action != VisibilityAction.TOGGLE) {
+				targetNode.then(RequiredArgumentBuilder.<S, Duration>argument("duration", duration)
+						.executes(run(commands, senderOf, (context, sender, api) -> commands.others(api, sender, action,
+								context.getArgument("target", String.class), context.getArgument("duration", Duration.class)))));
+			}
+
+			root.then(LiteralArgumentBuilder.<S>literal(action.getName())
+					.executes(run(commands, senderOf, (context, sender, api) -> commands.self(api, sender, action)))
+					.then(targetNode));
+		}
+		return root;
+	}
+
+	/**
+	 * Add the names of online players that start with what was typed so far
+	 * @param index The online players
+	 * @param builder The suggestions to add the names to
+	 * @return The suggestions
+	 */
+	static CompletableFuture<Suggestions> suggestNames(TabCompletionIndex index, SuggestionsBuilder builder) {
+		List<String> names = new ArrayList<>();
+		index.completeNames(builder.getRemaining(), names, MAX_COMPLETIONS);
+		for (String name : names) {
+			builder.suggest(name);
+		}
+		return builder.buildFuture();
+	}
+
+	private static CompletableFuture<Suggestions> suggestGroups(BMPC commands, SuggestionsBuilder builder) {
+		String remaining = builder.getRemainingLowerCase();
+		for (String group : commands.getGroupNames()) {
+			if (group.startsWith(remaining)) builder.suggest(group);
+		}
+		return builder.buildFuture();
+	}
+
+	private static <S> Predicate<S> requires(PermissionCache permissions, Function<S, CommandSender> senderOf, PermissionCache.Permission permission) {
+		return source -> permissions.has(senderOf.apply(source), permission);
+	}
+
+	private static <S> Command<S> run(BMPC commands, Function<S, CommandSender> senderOf, Handler<S> handler) {
+		return context -> {
+			CommandSender sender = senderOf.apply(context.getSource());
+			commands.execute(sender, context.getInput(), api -> handler.run(context, sender, api));
+			return Command.SINGLE_SUCCESS;
+		};
+	}
+
+	@FunctionalInterface
+	private interface Handler<S> {
+		void run(CommandContext<S> context, CommandSender sender, BlueMapAPI api);
+	}
+}
@@ -0,0 +1,91 @@
+package com.technicjelle.bluemapplayercontrol.commands;
+
+import com.mojang.brigadier.LiteralMessage;
+import com.mojang.brigadier.StringReader;
+import com.mojang.brigadier.arguments.ArgumentType;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import com.mojang.brigadier.exceptions.SimpleCommandExceptionType;
+import com.mojang.brigadier.suggestion.Suggestions;
+import com.mojang.brigadier.suggestion.SuggestionsBuilder;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A duration like <code>30m</code> or <code>1h30m</code>, in days, hours, minutes and seconds
+ */
+class DurationArgument implements ArgumentType<Duration> {
+	/** The amounts are limited in length, so they can't overflow */
+	private static final Pattern DURATION_PATTERN = Pattern.compile("(\\d{1,6})([dhms])");
+	private static final List<String> SUGGESTIONS = Arrays.asList("10m", "30m", "1h", "1d");
+	private static final SimpleCommandExceptionType INVALID = new SimpleCommandExceptionType(new LiteralMessage("Invalid duration"));
+
+	@Override
+	public Duration parse(StringReader reader) throws CommandSyntaxException {
+		int start = reader.getCursor();
+		String text = reader.readUnquotedString();
+		Duration duration = parse(text);
+		if (duration == null) {
+			reader.setCursor(start);
+			throw INVALID.createWithContext(reader);
+		}
+		return duration;
+	}
+
+	@Override
+	public <S> CompletableFuture<Suggestions> listSuggestions(CommandContext<S> context, SuggestionsBuilder builder) {
+		String remaining = builder.getRemainingLowerCase();
+		for (String suggestion : SUGGESTIONS) {
+			if (suggestion.startsWith(remaining)) builder.suggest(suggestion);
+		}
+		return builder.buildFuture();
+	}
+
+	@Override
+	public Collection<String> getExamples() {
+		return SUGGESTIONS;
+	}
+
+	/**
+	 * @param text The duration, as typed by the sender
+	 * @return The duration, or <code>null</code> if it isn't a valid, positive duration
+	 */
+	static @Nullable Duration parse(String text) {
+		Matcher matcher = DURATION_PATTERN.matcher(text.toLowerCase(Locale.ROOT));
+		Duration duration = Duration.ZERO;
+		int end = 0;
+		while (matcher.find() && matcher.start() == end) {
+			long amount = Long.parseLong(matcher.group(1));
+			duration = duration.plus(switch (matcher.group(2)) {
+				case "d" -> Duration.ofDays(amount);
+				case "h" -> Duration.ofHours(amount);
+				case "m" -> Duration.ofMinutes(amount);
+				default -> Duration.ofSeconds(amount);
+			});
+			end = matcher.end();
+		}
+		if (end != text.length() || duration.isZero()) return null;
+		return duration;
+	}
+
+	/**
+	 * @param duration A duration
+	 * @return The duration in the format that {@link #parse(String)} reads, like <code>1h30m</code>
+	 */
+	static String format(Duration duration) {
+		StringBuilder text = new StringBuilder();
+		if (duration.toDays() > 0) text.append(duration.toDays()).append('d');
+		if (duration.toHoursPart() > 0) text.append(duration.toHoursPart()).append('h');
+		if (duration.toMinutesPart() > 0) text.append(duration.toMinutesPart()).append('m');
+		if (duration.toSecondsPart() > 0 || text.isEmpty()) text.append(duration.toSecondsPart()).append('s');
+		return text.toString();
+	}
+}
@@ -0,0 +1,119 @@
+package com.technicjelle.bluemapplayercontrol.commands;
+
+import com.mojang.brigadier.StringReader;
+import com.mojang.brigadier.arguments.ArgumentType;
+import com.mojang.brigadier.arguments.StringArgumentType;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import com.mojang.brigadier.suggestion.Suggestions;
+import com.mojang.brigadier.suggestion.SuggestionsBuilder;
+import com.mojang.brigadier.tree.LiteralCommandNode;
+import com.technicjelle.bluemapplayercontrol.BlueMapPlayerControl;
+import com.technicjelle.bluemapplayercontrol.ConfigManager;
+import io.papermc.paper.command.brigadier.CommandSourceStack;
+import io.papermc.paper.command.brigadier.argument.CustomArgumentType;
+import io.papermc.paper.plugin.lifecycle.event.types.LifecycleEvents;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Registers the command tree with Paper's Brigadier command API, so clients get the whole tree
+ * and can parse and complete the literals by themselves, only asking the server for the players and durations.
+ * <p>
+ * Paper only takes commands when the server starts or reloads, so labels that a reload of this plugin adds
+ * are registered in the command map instead, and removed labels stay until a restart.
+ * This class must only be loaded when {@link BMPC#isPaperCommandApiAvailable()} is true.
+ */
+@SuppressWarnings("UnstableApiUsage")
+public final class PaperCommands {
+	private final BlueMapPlayerControl plugin;
+	private final BMPC commands;
+	private final ConfigManager configManager;
+	private volatile Set<String> labels = Collections.emptySet();
+
+	public PaperCommands(BlueMapPlayerControl plugin, BMPC commands, ConfigManager configManager) {
+		this.plugin = plugin;
+		this.commands = commands;
+		this.configManager = configManager;
+	}
+
+	/**
+	 * Register the command, with the name and aliases from the config at the time Paper asks for it
+	 */
+	public void register() {
+		plugin.getLifecycleManager().registerEventHandler(LifecycleEvents.COMMANDS, event -> {
+			String name = configManager.getCommandName().toLowerCase(Locale.ROOT);
+			Set<String> aliases = new LinkedHashSet<>();
+			for (String alias : configManager.getCommandAliases()) {
+				aliases.add(alias.toLowerCase(Locale.ROOT));
+			}
+			aliases.remove(name);
+
+			LiteralCommandNode<CommandSourceStack> node = commands.<CommandSourceStack>buildTree(name, CommandSourceStack::getSender,
+					new NativeTarget(new TargetArgument(plugin.getTabCompletionIndex())), new NativeDuration()).build();
+			event.registrar().register(node, BMPC.DESCRIPTION, aliases);
+
+			Set<String> registered = new LinkedHashSet<>();
+			registered.add(name);
+			registered.addAll(aliases);
+			labels = registered;
+		});
+	}
+
+	/**
+	 * @return The name and aliases the command was last registered with
+	 */
+	public Set<String> getLabels() {
+		return labels;
+	}
+
+	/**
+	 * Parsed by the server like {@link TargetArgument}, and sent to the client as a string, with the players and selectors suggested by the server.
+	 * A string ends at a space like the target does, so clients still get to the duration after it.
+	 * Clients can't read selectors as an unquoted string, so they only accept them without complaint when they are quoted.
+	 * The vanilla entity argument would mark the <code>world=</code> option and names of offline players as mistakes instead.
+	 */
+	private record NativeTarget(TargetArgument parser) implements CustomArgumentType<String, String> {
+		@Override
+		public String parse(StringReader reader) throws CommandSyntaxException {
+			return parser.parse(reader);
+		}
+
+		@Override
+		public ArgumentType<String> getNativeType() {
+			return StringArgumentType.string();
+		}
+
+		@Override
+		public <S> CompletableFuture<Suggestions> listSuggestions(CommandContext<S> context, SuggestionsBuilder builder) {
+			return parser.listSuggestions(context, builder);
+		}
+	}
+
+	/**
+	 * Sent to the client as a single word, with the usual durations suggested by the server
+	 */
+	private static final class NativeDuration implements CustomArgumentType<Duration, String> {
+		private final DurationArgument parser = new DurationArgument();
+
+		@Override
+		public Duration parse(StringReader reader) throws CommandSyntaxException {
+			return parser.parse(reader);
+		}
+
+		@Override
+		public ArgumentType<String> getNativeType() {
+			return StringArgumentType.word();
+		}
+
+		@Override
+		public <S> CompletableFuture<Suggestions> listSuggestions(CommandContext<S> context, SuggestionsBuilder builder) {
+			return parser.listSuggestions(context, builder);
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package com.technicjelle.bluemapplayercontrol.commands;
+
+import org.bukkit.Bukkit;
+import org.bukkit.GameMode;
+import org.bukkit.Location;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the target argument of the commands, without going through the vanilla entity selector when it doesn't need to.
+ * <p>
+ * Plain player names are looked up directly. <code>@a</code>, <code>@p</code>, <code>@r</code> and <code>@s</code>
+ * are evaluated against the online players only, with the <code>distance</code>, <code>limit</code> and <code>gamemode</code> options,
+ * and a <code>world</code> option that vanilla doesn't have.
+ * Everything else, including malformed selectors, is left to {@link Bukkit#selectEntities}, so it behaves exactly like vanilla.
+ */
+public final class PlayerSelector {
+	private static final Pattern PLAYER_NAME_PATTERN = Pattern.compile("[A-Za-z0-9_]{1,16}");
+	/** Distances can't be negative, so there is no sign */
+	private static final Pattern NUMBER_PATTERN = Pattern.compile("[0-9]*\\.?[0-9]+");
+
+	private PlayerSelector() {
+	}
+
+	/**
+	 * @param sender The sender of the command, which <code>@s</code>, <code>@p</code> and <code>distance</code> are relative to
+	 * @param argument A player name or target selector
+	 * @return The selected entities
+	 * @throws IllegalArgumentException If the selector is invalid
+	 */
+	public static List<Entity> select(CommandSender sender, String argument) {
+		List<Entity> selected = trySelect(sender, argument);
+		if (selected != null) return selected;
+		return Bukkit.selectEntities(sender, argument);
+	}
+
+	/**
+	 * @return The selected players, or <code>null</code> if the argument needs the vanilla selector
+	 */
+	static @Nullable List<Entity> trySelect(CommandSender sender, String argument) {
+		if (PLAYER_NAME_PATTERN.matcher(argument).matches()) {
+			Player player = Bukkit.getPlayerExact(argument);
+			List<Entity> selected = new ArrayList<>(1);
+			if (player != null) selected.add(player);
+			return selected;
+		}
+
+		if (argument.length() < 2 || argument.charAt(0) != '@') return null;
+		Query query = Query.parse(argument.charAt(1), argument.substring(2));
+		if (query == null) return null;
+
+		// Positions are only known for players; other senders, like the console, sit at the world spawn in vanilla
+		Location origin = null;
+		if (query.needsOrigin()) {
+			if (!(sender instanceof Player player)) return null;
+			origin = player.getLocation();
+		}
+		return query.select(sender, origin);
+	}
+
+	/**
+	 * A parsed selector
+	 */
+	private static final class Query {
+		private final char type;
+		private int limit;
+		private double minDistance = Double.NaN;
+		private double maxDistance = Double.NaN;
+		private @Nullable GameMode gameMode;
+		private final Set<GameMode> excludedGameModes = EnumSet.noneOf(GameMode.class);
+		private @Nullable String world;
+		private boolean worldExcluded;
+
+		private Query(char type) {
+			this.type = type;
+			limit = type == 'p' || type == 'r' ? 1 : Integer.MAX_VALUE;
+		}
+
+		/**
+		 * @param type The character after the <code>@</code>
+		 * @param options The rest of the selector, like <code>[limit=3]</code>
+		 * @return The query, or <code>null</code> if it uses something that is left to vanilla
+		 */
+		private static @Nullable Query parse(char type, String options) {
+			if (type != 'a' && type != 'p' && type != 'r' && type != 's') return null;
+			Query query = new Query(type);
+			if (options.isEmpty()) return query;
+			if (options.charAt(0) != '[' || options.charAt(options.length() - 1) != ']') return null;
+
+			String inner = options.substring(1, options.length() - 1);
+			if (inner.isEmpty()) return query;
+
+			boolean limitSet = false;
+			boolean distanceSet = false;
+			for (String option : inner.split(",", -1)) {
+				int equals = option.indexOf('=');
+				if (equals <= 0) return null;
+				String key = option.substring(0, equals);
+				String value = option.substring(equals + 1);
+				boolean negated = value.startsWith("!");
+				if (negated) value = value.substring(1);
+				if (value.isEmpty()) return null;
+
+				switch (key) {
+					case "limit" -> {
+						if (negated || limitSet || type == 's') return null;
+						limitSet = true;
+						try {
+							query.limit = Integer.parseInt(value);
+						} catch (NumberFormatException e) {
+							return null;
+						}
+						if (query.limit < 1) return null;
+					}
+					case "distance" -> {
+						if (negated || distanceSet || !query.parseDistance(value)) return null;
+						distanceSet = true;
+					}
+					case "gamemode" -> {
+						GameMode mode = parseGameMode(value);
+						if (mode == null) return null;
+						if (negated) {
+							query.excludedGameModes.add(mode);
+						} else {
+							if (query.gameMode != null) return null;
+							query.gameMode = mode;
+						}
+					}
+					case "world" -> {
+						if (query.world != null) return null;
+						query.world = value;
+						query.worldExcluded = negated;
+					}
+					default -> {
+						return null;
+					}
+				}
+			}
+			return query;
+		}
+
+		/**
+		 * @param value A range like <code>5</code>, <code>..5</code>, <code>5..</code> or <code>1..5</code>
+		 * @return Whether it is a valid range
+		 */
+		private boolean parseDistance(String value) {
+			int dots = value.indexOf("..");
+			String min = dots < 0 ? value : value.substring(0, dots);
+			String max = dots < 0 ? value : value.substring(dots + 2);
+			if (min.isEmpty() && max.isEmpty()) return false;
+			if (!min.isEmpty()) {
+				if (!NUMBER_PATTERN.matcher(min).matches()) return false;
+				minDistance = Double.parseDouble(min);
+			}
+			if (!max.isEmpty()) {
+				if (!NUMBER_PATTERN.matcher(max).matches()) return false;
+				maxDistance = Double.parseDouble(max);
+			}
+			return Double.isNaN(minDistance) || Double.isNaN(maxDistance) || minDistance <= maxDistance;
+		}
+
+		private static @Nullable GameMode parseGameMode(String value) {
+			return switch (value) {
+				case "survival" -> GameMode.SURVIVAL;
+				case "creative" -> GameMode.CREATIVE;
+				case "adventure" -> GameMode.ADVENTURE;
+				case "spectator" -> GameMode.SPECTATOR;
+				default -> null;
+			};
+		}
+
+		private boolean hasDistance() {
+			return !Double.isNaN(minDistance) || !Double.isNaN(maxDistance);
+		}
+
+		private boolean needsOrigin() {
+			return type == 'p' || hasDistance();
+		}
+
+		private List<Entity> select(CommandSender sender, @Nullable Location origin) {
+			List<Player> candidates = new ArrayList<>();
+			if (type == 's') {
+				if (sender instanceof Player player && matches(player, origin)) candidates.add(player);
+			} else {
+				// @a takes players in any order, so it can stop at the limit; the others sort first
+				int stopAt = type == 'a' ? limit : Integer.MAX_VALUE;
+				for (Player player : Bukkit.getOnlinePlayers()) {
+					if (candidates.size() >= stopAt) break;
+					// Only @a selects dead players
+					if (type != 'a' && player.isDead()) continue;
+					if (matches(player, origin)) candidates.add(player);
+				}
+			}
+
+			if (type == 'p' && origin != null) {
+				candidates.sort(Comparator.comparingDouble(player -> distanceSquared(player.getLocation(), origin)));
+			} else if (type == 'r') {
+				Collections.shuffle(candidates, ThreadLocalRandom.current());
+			}
+
+			int count = Math.min(limit, candidates.size());
+			return new ArrayList<>(candidates.subList(0, count));
+		}
+
+		private boolean matches(Player player, @Nullable Location origin) {
+			if (gameMode != null && player.getGameMode() != gameMode) return false;
+			if (!excludedGameModes.isEmpty() && excludedGameModes.contains(player.getGameMode())) return false;
+
+			if (world != null) {
+				boolean inWorld = player.getWorld().getName().toLowerCase(Locale.ROOT).equals(world.toLowerCase(Locale.ROOT));
+				if (inWorld == worldExcluded) return false;
+			}
+
+			if (hasDistance() && origin != null) {
+				// Like vanilla, distances only select players in the sender's world
+				Location location = player.getLocation();
+				if (location.getWorld() != origin.getWorld()) return false;
+				double distanceSquared = distanceSquared(location, origin);
+				if (!Double.isNaN(minDistance) && distanceSquared < minDistance * minDistance) return false;
+				if (!Double.isNaN(maxDistance) && distanceSquared > maxDistance * maxDistance) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Unlike {@link Location#distanceSquared}, works across worlds, because vanilla's <code>@p</code> compares coordinates in any world
+		 */
+		private static double distanceSquared(Location a, Location b) {
+			double dx = a.getX() - b.getX();
+			double dy = a.getY() - b.getY();
+			double dz = a.getZ() - b.getZ();
+			return dx * dx + dy * dy + dz * dz;
+		}
+	}
+}
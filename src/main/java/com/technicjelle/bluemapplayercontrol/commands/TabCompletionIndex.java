@@ -0,0 +1,58 @@
+package com.technicjelle.bluemapplayercontrol.commands;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Keeps the names of all online players sorted, so tab completion can look up a typed prefix
+ * without going through every online player on every key press.
+ */
+public class TabCompletionIndex implements Listener {
+	/** Lowercase name to actual name */
+	private final ConcurrentSkipListMap<String, String> names = new ConcurrentSkipListMap<>();
+
+	public TabCompletionIndex() {
+		// Players that are already online, in case of a reload
+		for (Player player : Bukkit.getOnlinePlayers()) {
+			names.put(player.getName().toLowerCase(Locale.ROOT), player.getName());
+		}
+	}
+
+	@EventHandler(priority = EventPriority.LOWEST)
+	public void onPlayerJoin(PlayerJoinEvent event) {
+		String name = event.getPlayer().getName();
+		names.put(name.toLowerCase(Locale.ROOT), name);
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerQuit(PlayerQuitEvent event) {
+		names.remove(event.getPlayer().getName().toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Add the names of online players that start with the prefix, ignoring case
+	 * @param prefix The prefix the sender has typed so far
+	 * @param completions The list to add the names to
+	 * @param limit The maximum size of the list after adding the names
+	 */
+	public void completeNames(String prefix, List<String> completions, int limit) {
+		if (completions.size() >= limit) return;
+
+		String lowerPrefix = prefix.toLowerCase(Locale.ROOT);
+		NavigableMap<String, String> matches = names.subMap(lowerPrefix, true, lowerPrefix + Character.MAX_VALUE, false);
+		for (String name : matches.values()) {
+			completions.add(name);
+			if (completions.size() >= limit) return;
+		}
+	}
+}
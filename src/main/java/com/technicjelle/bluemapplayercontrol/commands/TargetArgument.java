@@ -0,0 +1,66 @@
+package com.technicjelle.bluemapplayercontrol.commands;
+
+import com.mojang.brigadier.LiteralMessage;
+import com.mojang.brigadier.StringReader;
+import com.mojang.brigadier.arguments.ArgumentType;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import com.mojang.brigadier.exceptions.SimpleCommandExceptionType;
+import com.mojang.brigadier.suggestion.Suggestions;
+import com.mojang.brigadier.suggestion.SuggestionsBuilder;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A player name or target selector, kept as text so {@link PlayerSelector} can resolve it,
+ * and so names of offline players are accepted too.
+ * <p>
+ * Selectors may contain spaces between their brackets, so the argument only ends at a space outside of them.
+ * The target may also be quoted, because Paper clients read it as a string, which can only hold a selector in quotes.
+ */
+class TargetArgument implements ArgumentType<String> {
+	private static final String[] SELECTORS = {"@a", "@p", "@r", "@s"};
+	private static final SimpleCommandExceptionType EXPECTED = new SimpleCommandExceptionType(new LiteralMessage("Expected a player or selector"));
+
+	private final TabCompletionIndex index;
+
+	/**
+	 * @param index The online players, to suggest their names
+	 */
+	TargetArgument(TabCompletionIndex index) {
+		this.index = index;
+	}
+
+	@Override
+	public String parse(StringReader reader) throws CommandSyntaxException {
+		if (reader.canRead() && StringReader.isQuotedStringStart(reader.peek())) {
+			return reader.readQuotedString();
+		}
+
+		int start = reader.getCursor();
+		int depth = 0;
+		while (reader.canRead() && (depth > 0 || reader.peek() != ' ')) {
+			char c = reader.read();
+			if (c == '[') depth++;
+			else if (c == ']') depth--;
+		}
+		if (reader.getCursor() == start) throw EXPECTED.createWithContext(reader);
+		return reader.getString().substring(start, reader.getCursor());
+	}
+
+	@Override
+	public <S> CompletableFuture<Suggestions> listSuggestions(CommandContext<S> context, SuggestionsBuilder builder) {
+		String remaining = builder.getRemaining();
+		for (String selector : SELECTORS) {
+			if (selector.startsWith(remaining)) builder.suggest(selector);
+		}
+		return CommandTree.suggestNames(index, builder);
+	}
+
+	@Override
+	public Collection<String> getExamples() {
+		return Arrays.asList("Player", "@a", "@p[distance=..10]");
+	}
+}
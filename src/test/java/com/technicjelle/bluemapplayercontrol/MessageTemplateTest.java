@@ -0,0 +1,35 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
+import net.kyori.adventure.text.serializer.plain.PlainTextComponentSerializer;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MessageTemplateTest {
+	private static final MessageTemplate TEMPLATE = new MessageTemplate(
+			Component.text("{player} was hidden by {sender}", NamedTextColor.YELLOW), new String[] {"player", "sender"});
+
+	@Test
+	void fillsEverySlot() {
+		Component rendered = TEMPLATE.render("sender", "Alex", "player", "Steve");
+		assertEquals("Steve was hidden by Alex", plain(rendered));
+	}
+
+	@Test
+	void keepsSlotsWithoutAValue() {
+		assertEquals("Steve was hidden by {sender}", plain(TEMPLATE.render("player", "Steve")));
+	}
+
+	@Test
+	void readsLegacyColoursInValues() {
+		Component rendered = TEMPLATE.render("player", "§cSteve", "sender", "Alex");
+		assertEquals("§cSteve§e was hidden by Alex", LegacyComponentSerializer.legacySection().serialize(rendered));
+	}
+
+	private static String plain(Component component) {
+		return PlainTextComponentSerializer.plainText().serialize(component);
+	}
+}
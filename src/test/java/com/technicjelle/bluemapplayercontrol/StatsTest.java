@@ -0,0 +1,54 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StatsTest {
+	private static final String PREFIX = "bmpc_operation_duration_seconds_bucket{operation=\"reload\",le=\"";
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void bucketBoundsOfHugeValuesDontOverflow() throws IOException {
+		Stats stats = new Stats();
+		stats.record(Stats.Operation.RELOAD, System.nanoTime());
+		// Lands in the highest bucket with a bound, whose bound doesn't fit in a long
+		stats.record(Stats.Operation.RELOAD, System.nanoTime() - (1L << 62));
+
+		List<String> buckets = writeBuckets(stats);
+		double previousBound = 0;
+		long previousCount = 0;
+		for (String bucket : buckets) {
+			String bound = bucket.substring(PREFIX.length(), bucket.indexOf('"', PREFIX.length()));
+			long count = Long.parseLong(bucket.substring(bucket.lastIndexOf(' ') + 1));
+			if (!bound.equals("+Inf")) {
+				assertTrue(Double.parseDouble(bound) > previousBound, bucket);
+				previousBound = Double.parseDouble(bound);
+			}
+			assertTrue(count >= previousCount, bucket);
+			previousCount = count;
+		}
+		assertEquals(PREFIX + "+Inf\"} 2", buckets.getLast());
+	}
+
+	@Test
+	void emptyHistogramOnlyHasInf() throws IOException {
+		List<String> buckets = writeBuckets(new Stats());
+		assertEquals(List.of(PREFIX + "2.0E-9\"} 0", PREFIX + "+Inf\"} 0"), buckets);
+	}
+
+	private List<String> writeBuckets(Stats stats) throws IOException {
+		Path file = directory.resolve("stats.prom");
+		stats.writePrometheus(file);
+		return Files.readAllLines(file).stream().filter(line -> line.startsWith(PREFIX)).toList();
+	}
+}
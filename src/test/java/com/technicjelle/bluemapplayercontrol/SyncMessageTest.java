@@ -0,0 +1,84 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SyncMessageTest {
+	@Test
+	void survivesEncodingAndDecoding() {
+		List<SyncMessage.Entry> entries = List.of(
+				new SyncMessage.Entry(UUID.randomUUID(), true, 1000, 7),
+				new SyncMessage.Entry(UUID.randomUUID(), false, 1001, -3));
+		SyncMessage message = new SyncMessage(SyncMessage.Type.DELTA, 42, entries);
+
+		assertEquals(message, SyncMessage.decode(message.encode()));
+	}
+
+	@Test
+	void encodesEveryType() {
+		for (SyncMessage.Type type : SyncMessage.Type.values()) {
+			SyncMessage message = new SyncMessage(type, 1, List.of());
+			assertEquals(message, SyncMessage.decode(message.encode()));
+		}
+	}
+
+	@Test
+	void largestMessageFitsTheLimit() {
+		List<SyncMessage.Entry> entries = new ArrayList<>();
+		for (int i = 0; i < SyncMessage.MAX_ENTRIES; i++) {
+			entries.add(new SyncMessage.Entry(UUID.randomUUID(), i % 2 == 0, i, 1));
+		}
+		assertEquals(SyncMessage.MAX_SIZE, new SyncMessage(SyncMessage.Type.SNAPSHOT, 1, entries).encode().length);
+
+		entries.add(new SyncMessage.Entry(UUID.randomUUID(), true, 0, 1));
+		assertThrows(IllegalArgumentException.class, () -> new SyncMessage(SyncMessage.Type.SNAPSHOT, 1, entries));
+	}
+
+	@Test
+	void ignoresOtherFormatsAndDamagedMessages() {
+		byte[] bytes = new SyncMessage(SyncMessage.Type.DELTA, 1, List.of(new SyncMessage.Entry(UUID.randomUUID(), true, 1, 1))).encode();
+
+		assertNull(SyncMessage.decode(Arrays.copyOf(bytes, bytes.length - 1)));
+		assertNull(SyncMessage.decode(new byte[0]));
+
+		byte[] otherVersion = bytes.clone();
+		otherVersion[Integer.BYTES] = 99;
+		assertNull(SyncMessage.decode(otherVersion));
+
+		byte[] otherMagic = bytes.clone();
+		otherMagic[0] = 0;
+		assertNull(SyncMessage.decode(otherMagic));
+	}
+
+	@Test
+	void laterClockWins() {
+		UUID player = UUID.randomUUID();
+		SyncMessage.Entry earlier = new SyncMessage.Entry(player, true, 1000, 5);
+		SyncMessage.Entry later = new SyncMessage.Entry(player, false, 1001, 1);
+
+		assertTrue(later.isNewerThan(earlier));
+		assertFalse(earlier.isNewerThan(later));
+		assertTrue(earlier.isNewerThan(null));
+	}
+
+	@Test
+	void nodeBreaksTiesTheSameWayEverywhere() {
+		UUID player = UUID.randomUUID();
+		SyncMessage.Entry low = new SyncMessage.Entry(player, true, 1000, 1);
+		SyncMessage.Entry high = new SyncMessage.Entry(player, false, 1000, 2);
+
+		assertTrue(high.isNewerThan(low));
+		assertFalse(low.isNewerThan(high));
+		assertFalse(low.isNewerThan(low));
+	}
+}
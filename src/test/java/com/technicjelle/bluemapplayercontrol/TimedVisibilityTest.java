@@ -0,0 +1,98 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TimedVisibilityTest {
+	private static final Logger LOGGER = Logger.getLogger("TimedVisibilityTest");
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void survivesAWriteAndRead() {
+		Path file = directory.resolve("timed.dat");
+		TimedVisibility timed = new TimedVisibility(file, LOGGER);
+		timed.load();
+		long expiresAt = System.currentTimeMillis() + 60_000;
+		timed.add(List.of(UUID.randomUUID(), UUID.randomUUID()), false, expiresAt);
+		timed.add(List.of(UUID.randomUUID()), true, expiresAt + 1000);
+		timed.save();
+
+		TimedVisibility loaded = new TimedVisibility(file, LOGGER);
+		loaded.load();
+		assertEquals(3, loaded.size());
+	}
+
+	@Test
+	void laterChangeReplacesEarlierOne() {
+		TimedVisibility timed = new TimedVisibility(directory.resolve("timed.dat"), LOGGER);
+		UUID player = UUID.randomUUID();
+		timed.add(List.of(player), false, 1000);
+		timed.add(List.of(player), true, 2000);
+		assertEquals(1, timed.size());
+	}
+
+	@Test
+	void permanentChangeDropsTheExpiration() {
+		TimedVisibility timed = new TimedVisibility(directory.resolve("timed.dat"), LOGGER);
+		UUID player = UUID.randomUUID();
+		timed.add(List.of(player), false, System.currentTimeMillis() + 60_000);
+
+		// The timed change itself being applied keeps it
+		timed.onVisibilityChange(player, false);
+		assertEquals(1, timed.size());
+
+		// Showing the player again before it expires means it must never be undone
+		timed.onVisibilityChange(player, true);
+		assertEquals(0, timed.size());
+		timed.onVisibilityChange(player, false);
+		assertEquals(0, timed.size());
+	}
+
+	@Test
+	void cancelDropsTheExpirationOfTheSameVisibility() {
+		TimedVisibility timed = new TimedVisibility(directory.resolve("timed.dat"), LOGGER);
+		timed.load();
+		UUID player = UUID.randomUUID();
+		UUID other = UUID.randomUUID();
+		timed.add(List.of(player, other), false, System.currentTimeMillis() + 60_000);
+
+		// Hiding a player that is already hidden doesn't reach the listener, so a permanent hide cancels explicitly
+		timed.cancel(List.of(player));
+		assertEquals(1, timed.size());
+		timed.cancel(List.of(player));
+		assertEquals(1, timed.size());
+
+		// Only the other player's expiration is still there after a restart
+		timed.save();
+		TimedVisibility loaded = new TimedVisibility(directory.resolve("timed.dat"), LOGGER);
+		loaded.load();
+		assertEquals(1, loaded.size());
+	}
+
+	@Test
+	void startsEmptyWithADamagedCount() throws IOException {
+		for (int count : new int[] {-1, 2, Integer.MAX_VALUE}) {
+			Path file = directory.resolve("damaged.dat");
+			// The header of the format, followed by a single entry
+			ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + Byte.BYTES + Integer.BYTES + Long.BYTES * 3 + 1);
+			buffer.putInt(0x424D5054).put((byte) 1).putInt(count).putLong(1).putLong(2).putLong(3).put((byte) 1);
+			Files.write(file, buffer.array());
+
+			TimedVisibility timed = new TimedVisibility(file, LOGGER);
+			timed.load();
+			assertEquals(0, timed.size(), "count " + count);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ToggleLimiterTest {
+	private static final long SECOND = 1_000_000_000L;
+
+	@Test
+	void newBucketAllowsTheBurst() {
+		ToggleLimiter.Bucket bucket = new ToggleLimiter.Bucket();
+		for (int i = 0; i < 5; i++) {
+			assertTrue(bucket.tryTake(5, 2, 0), "take " + i);
+		}
+		assertFalse(bucket.tryTake(5, 2, 0));
+	}
+
+	@Test
+	void refillsOverTime() {
+		ToggleLimiter.Bucket bucket = new ToggleLimiter.Bucket();
+		for (int i = 0; i < 3; i++) bucket.tryTake(3, 2, 0);
+		assertFalse(bucket.tryTake(3, 2, 0));
+
+		// Two tokens per second, so one after half a second
+		assertFalse(bucket.tryTake(3, 2, SECOND / 4));
+		assertTrue(bucket.tryTake(3, 2, SECOND / 2));
+		assertFalse(bucket.tryTake(3, 2, SECOND / 2));
+	}
+
+	@Test
+	void neverHoldsMoreThanItsCapacity() {
+		ToggleLimiter.Bucket bucket = new ToggleLimiter.Bucket();
+		bucket.tryTake(2, 1, 0);
+		long later = 100 * SECOND;
+		assertTrue(bucket.tryTake(2, 1, later));
+		assertTrue(bucket.tryTake(2, 1, later));
+		assertFalse(bucket.tryTake(2, 1, later));
+	}
+
+	@Test
+	void isOnlyFullOnceRefilled() {
+		ToggleLimiter.Bucket bucket = new ToggleLimiter.Bucket();
+		assertTrue(bucket.isFull(3, 1, 0));
+		bucket.tryTake(3, 1, 0);
+		bucket.tryTake(3, 1, 0);
+		assertFalse(bucket.isFull(3, 1, SECOND));
+		assertTrue(bucket.isFull(3, 1, 2 * SECOND));
+	}
+
+	@Test
+	void withoutRefillStaysEmpty() {
+		ToggleLimiter.Bucket bucket = new ToggleLimiter.Bucket();
+		assertTrue(bucket.tryTake(1, 0, 0));
+		assertFalse(bucket.tryTake(1, 0, 1000 * SECOND));
+		assertFalse(bucket.isFull(1, 0, 1000 * SECOND));
+	}
+}
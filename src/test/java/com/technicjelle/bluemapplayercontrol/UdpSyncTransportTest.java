@@ -0,0 +1,56 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class UdpSyncTransportTest {
+	private static final Logger LOGGER = Logger.getLogger("UdpSyncTransportTest");
+
+	@Test
+	void onlyReceivesFromPeers() throws Exception {
+		try (DatagramSocket peer = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+		     DatagramSocket stranger = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0))) {
+			int port;
+			try (DatagramSocket free = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0))) {
+				port = free.getLocalPort();
+			}
+			InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+
+			BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+			UdpSyncTransport transport = new UdpSyncTransport("127.0.0.1", port, List.of((InetSocketAddress) peer.getLocalSocketAddress()), LOGGER);
+			transport.start(new SyncTransport.Receiver() {
+				@Override
+				public void receive(byte[] message) {
+					received.add(message);
+				}
+
+				@Override
+				public void onConnected() {
+				}
+			});
+			try {
+				stranger.send(new DatagramPacket(new byte[] {1}, 1, address));
+				peer.send(new DatagramPacket(new byte[] {2}, 1, address));
+				// A longer message after a shorter one must still arrive whole
+				peer.send(new DatagramPacket(new byte[] {3, 4, 5}, 3, address));
+
+				assertArrayEquals(new byte[] {2}, received.poll(5, TimeUnit.SECONDS));
+				assertArrayEquals(new byte[] {3, 4, 5}, received.poll(5, TimeUnit.SECONDS));
+				assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+			} finally {
+				transport.close();
+			}
+		}
+	}
+}
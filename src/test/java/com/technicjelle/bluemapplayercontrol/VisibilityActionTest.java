@@ -0,0 +1,44 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class VisibilityActionTest {
+	@Test
+	void showAndHideReplaceWhateverCameBefore() {
+		for (VisibilityAction first : VisibilityAction.values()) {
+			assertEquals(VisibilityAction.SHOW, first.then(VisibilityAction.SHOW));
+			assertEquals(VisibilityAction.HIDE, first.then(VisibilityAction.HIDE));
+		}
+	}
+
+	@Test
+	void toggleFlipsWhatCameBefore() {
+		assertEquals(VisibilityAction.HIDE, VisibilityAction.SHOW.then(VisibilityAction.TOGGLE));
+		assertEquals(VisibilityAction.SHOW, VisibilityAction.HIDE.then(VisibilityAction.TOGGLE));
+	}
+
+	@Test
+	void twoTogglesCancelOut() {
+		assertNull(VisibilityAction.TOGGLE.then(VisibilityAction.TOGGLE));
+	}
+
+	@Test
+	void combinesLongerSequences() {
+		// Combined one at a time, like the debounce window does; null means nothing has to change
+		VisibilityAction combined = VisibilityAction.TOGGLE;
+		combined = combined.then(VisibilityAction.TOGGLE);
+		assertNull(combined);
+		combined = VisibilityAction.HIDE.then(VisibilityAction.TOGGLE).then(VisibilityAction.TOGGLE);
+		assertEquals(VisibilityAction.HIDE, combined);
+	}
+
+	@Test
+	void findsActionsBySubCommand() {
+		assertEquals(VisibilityAction.TOGGLE, VisibilityAction.fromSubCommand("toggle"));
+		assertEquals(VisibilityAction.SHOW, VisibilityAction.fromSubCommand("SHOW"));
+		assertNull(VisibilityAction.fromSubCommand("reload"));
+	}
+}
@@ -0,0 +1,81 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class VisibilityStoreTest {
+	private static final Logger LOGGER = Logger.getLogger("VisibilityStoreTest");
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void keepsTheLastVisibilityOfEveryPlayer() {
+		VisibilityStore store = new VisibilityStore(directory.resolve("visibility.dat"), LOGGER);
+		UUID player = UUID.randomUUID();
+		assertNull(store.get(player));
+
+		store.set(player, false);
+		store.set(player, true);
+		assertEquals(true, store.get(player));
+		assertEquals(1, store.size());
+	}
+
+	@Test
+	void survivesAWriteAndRead() {
+		Path file = directory.resolve("visibility.dat");
+		VisibilityStore store = new VisibilityStore(file, LOGGER);
+		store.load();
+		// More than the initial table holds, so it has to grow
+		Map<UUID, Boolean> expected = new HashMap<>();
+		for (int i = 0; i < 1000; i++) {
+			UUID player = UUID.randomUUID();
+			boolean visible = i % 3 != 0;
+			store.set(player, visible);
+			expected.put(player, visible);
+		}
+		store.flush();
+
+		VisibilityStore loaded = new VisibilityStore(file, LOGGER);
+		loaded.load();
+		assertEquals(expected.size(), loaded.size());
+		Map<UUID, Boolean> actual = new HashMap<>();
+		loaded.forEach(actual::put);
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	void startsEmptyWithANegativeCount() throws IOException {
+		assertStartsEmpty(-1);
+	}
+
+	@Test
+	void startsEmptyWithACountThatDoesntFit() throws IOException {
+		assertStartsEmpty(Integer.MAX_VALUE);
+		assertStartsEmpty(2);
+	}
+
+	private void assertStartsEmpty(int count) throws IOException {
+		Path file = directory.resolve("damaged.dat");
+		// The header of the format, followed by a single entry
+		ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + Byte.BYTES + Integer.BYTES + Long.BYTES * 2 + 1);
+		buffer.putInt(0x424D5043).put((byte) 1).putInt(count).putLong(1).putLong(2).put((byte) 1);
+		Files.write(file, buffer.array());
+
+		VisibilityStore store = new VisibilityStore(file, LOGGER);
+		store.load();
+		assertEquals(0, store.size());
+	}
+}
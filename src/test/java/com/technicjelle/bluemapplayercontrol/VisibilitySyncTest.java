@@ -0,0 +1,167 @@
+package com.technicjelle.bluemapplayercontrol;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class VisibilitySyncTest {
+	private static final Logger LOGGER = Logger.getLogger("VisibilitySyncTest");
+
+	private final LoopbackSyncTransport.Hub hub = new LoopbackSyncTransport.Hub();
+	private final UUID player = UUID.randomUUID();
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void changesReachTheOtherNode() {
+		Node a = new Node();
+		Node b = new Node();
+		a.start();
+		b.start();
+
+		a.set(player, false);
+		assertEquals(false, b.visibilities.get(player));
+
+		b.set(player, true);
+		assertEquals(true, a.visibilities.get(player));
+	}
+
+	@Test
+	void appliedChangesArentSentBack() {
+		Node a = new Node();
+		Node b = new Node();
+		a.start();
+		b.start();
+
+		// B applies A's change through its listener, like the visibility manager would; it must not echo it
+		a.set(player, false);
+		assertEquals(1, b.applied);
+		assertEquals(0, a.applied);
+	}
+
+	@Test
+	void latestChangeWinsWhateverOrderItArrives() {
+		Node a = new Node();
+		a.start();
+		long other = a.sync.getNode() + 1;
+
+		SyncMessage.Entry older = new SyncMessage.Entry(player, true, 1000, other);
+		SyncMessage.Entry newer = new SyncMessage.Entry(player, false, 2000, other);
+		a.sync.receive(new SyncMessage(SyncMessage.Type.DELTA, other, List.of(newer)).encode());
+		a.sync.receive(new SyncMessage(SyncMessage.Type.DELTA, other, List.of(older)).encode());
+		assertEquals(false, a.visibilities.get(player));
+		assertEquals(1, a.applied);
+	}
+
+	@Test
+	void localChangesAreNewerThanEverythingSeen() {
+		Node a = new Node();
+		a.start();
+		long other = a.sync.getNode() + 1;
+
+		// A change from a server whose clock runs far ahead
+		long future = System.currentTimeMillis() + 3_600_000;
+		a.sync.receive(new SyncMessage(SyncMessage.Type.DELTA, other, List.of(new SyncMessage.Entry(player, false, future, other))).encode());
+
+		Node b = new Node();
+		b.start();
+		a.set(player, true);
+		assertEquals(true, b.visibilities.get(player));
+	}
+
+	@Test
+	void nodeThatConnectsLaterGetsTheSnapshot() {
+		Node a = new Node();
+		a.start();
+		a.set(player, false);
+
+		// B wasn't connected for that change, and made one of its own in the meantime
+		Node b = new Node();
+		UUID otherPlayer = UUID.randomUUID();
+		b.set(otherPlayer, false);
+		b.start();
+
+		assertEquals(false, b.visibilities.get(player));
+		assertEquals(false, a.visibilities.get(otherPlayer));
+	}
+
+	@Test
+	void storedVisibilitiesAreInTheSnapshot() {
+		VisibilityStore store = new VisibilityStore(directory.resolve("visibility.dat"), LOGGER);
+		store.set(player, false);
+
+		Node b = new Node();
+		b.start();
+		Node a = new Node();
+		a.sync.seed(store);
+		a.start();
+
+		assertEquals(false, b.visibilities.get(player));
+	}
+
+	@Test
+	void storedVisibilitiesLoseFromAnyChange() {
+		VisibilityStore store = new VisibilityStore(directory.resolve("visibility.dat"), LOGGER);
+		store.set(player, false);
+
+		Node b = new Node();
+		b.start();
+		b.set(player, true);
+		Node a = new Node();
+		a.sync.seed(store);
+		a.start();
+
+		assertEquals(true, a.visibilities.get(player));
+		assertEquals(true, b.visibilities.get(player));
+	}
+
+	@Test
+	void closedNodeGetsNothing() {
+		Node a = new Node();
+		Node b = new Node();
+		a.start();
+		b.start();
+		b.sync.close();
+
+		a.set(player, false);
+		assertNull(b.visibilities.get(player));
+	}
+
+	/**
+	 * A server with its own visibilities, connected to the others through the hub
+	 */
+	private final class Node {
+		private final Map<UUID, Boolean> visibilities = new ConcurrentHashMap<>();
+		private final VisibilitySync sync;
+		private int applied;
+
+		private Node() {
+			// Everything runs right away, so the tests don't need to wait
+			sync = new VisibilitySync(new LoopbackSyncTransport(hub), this::apply, Runnable::run, Runnable::run, new Stats(), LOGGER);
+		}
+
+		private void start() {
+			sync.start();
+		}
+
+		private void set(UUID uuid, boolean visible) {
+			visibilities.put(uuid, visible);
+			sync.onVisibilityChange(uuid, visible);
+		}
+
+		private void apply(UUID uuid, boolean visible) {
+			applied++;
+			set(uuid, visible);
+		}
+	}
+}
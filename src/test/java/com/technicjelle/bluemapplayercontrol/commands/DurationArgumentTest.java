@@ -0,0 +1,52 @@
+package com.technicjelle.bluemapplayercontrol.commands;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class DurationArgumentTest {
+	@Test
+	void parsesSingleUnits() {
+		assertEquals(Duration.ofDays(2), DurationArgument.parse("2d"));
+		assertEquals(Duration.ofHours(1), DurationArgument.parse("1h"));
+		assertEquals(Duration.ofMinutes(30), DurationArgument.parse("30m"));
+		assertEquals(Duration.ofSeconds(45), DurationArgument.parse("45s"));
+	}
+
+	@Test
+	void parsesCombinedUnitsInAnyCase() {
+		assertEquals(Duration.ofMinutes(90), DurationArgument.parse("1h30m"));
+		assertEquals(Duration.ofMinutes(90), DurationArgument.parse("1H30M"));
+		assertEquals(Duration.ofDays(1).plusHours(2).plusMinutes(3).plusSeconds(4), DurationArgument.parse("1d2h3m4s"));
+	}
+
+	@Test
+	void rejectsInvalidDurations() {
+		assertNull(DurationArgument.parse(""));
+		assertNull(DurationArgument.parse("30"));
+		assertNull(DurationArgument.parse("m"));
+		assertNull(DurationArgument.parse("30x"));
+		assertNull(DurationArgument.parse("-5m"));
+		assertNull(DurationArgument.parse("1h 30m"));
+		assertNull(DurationArgument.parse("1h30"));
+	}
+
+	@Test
+	void rejectsZeroAndOverlongAmounts() {
+		assertNull(DurationArgument.parse("0m"));
+		assertNull(DurationArgument.parse("0h0m"));
+		// Amounts are limited to six digits, so they can't overflow
+		assertNull(DurationArgument.parse("1234567m"));
+	}
+
+	@Test
+	void formatsWhatItParses() {
+		assertEquals("1h30m", DurationArgument.format(Duration.ofMinutes(90)));
+		assertEquals("1d2h3m4s", DurationArgument.format(DurationArgument.parse("1d2h3m4s")));
+		assertEquals("2d", DurationArgument.format(DurationArgument.parse("48h")));
+		assertEquals("0s", DurationArgument.format(Duration.ZERO));
+	}
+}
@@ -0,0 +1,120 @@
+package com.technicjelle.bluemapplayercontrol.commands;
+
+import org.bukkit.Bukkit;
+import org.bukkit.GameMode;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PlayerSelectorTest {
+	/** Bukkit only takes a server once, so the tests share one and change what it returns */
+	private static final Server SERVER = Mockito.mock(Server.class);
+
+	static {
+		Mockito.when(SERVER.getLogger()).thenReturn(Logger.getLogger("PlayerSelectorTest"));
+		try {
+			Bukkit.setServer(SERVER);
+		} catch (RuntimeException e) {
+			// Bukkit logs build information the mock doesn't have; the server is set before that happens
+		}
+	}
+
+	private final World overworld = world("world");
+	private final World nether = world("world_nether");
+	private final CommandSender console = Mockito.mock(CommandSender.class);
+	private Player alice;
+	private Player bob;
+	private Player carol;
+
+	@BeforeEach
+	void setUp() {
+		alice = player("Alice", overworld, GameMode.SURVIVAL);
+		bob = player("Bob", overworld, GameMode.SPECTATOR);
+		carol = player("Carol", nether, GameMode.CREATIVE);
+		Mockito.doReturn(List.of(alice, bob, carol)).when(SERVER).getOnlinePlayers();
+		Mockito.when(SERVER.getPlayerExact("Alice")).thenReturn(alice);
+	}
+
+	@Test
+	void selectsPlayersByName() {
+		assertEquals(List.of(alice), PlayerSelector.trySelect(console, "Alice"));
+		assertEquals(List.of(), PlayerSelector.trySelect(console, "Nobody"));
+	}
+
+	@Test
+	void selectsAllPlayers() {
+		assertEquals(List.of(alice, bob, carol), PlayerSelector.trySelect(console, "@a"));
+		assertEquals(List.of(alice, bob, carol), PlayerSelector.trySelect(console, "@a[]"));
+	}
+
+	@Test
+	void appliesTheLimit() {
+		List<Entity> selected = PlayerSelector.trySelect(console, "@a[limit=2]");
+		assertNotNull(selected);
+		assertEquals(2, selected.size());
+		assertEquals(1, PlayerSelector.trySelect(console, "@r").size());
+	}
+
+	@Test
+	void filtersByGameMode() {
+		assertEquals(List.of(bob), PlayerSelector.trySelect(console, "@a[gamemode=spectator]"));
+		assertEquals(List.of(alice, carol), PlayerSelector.trySelect(console, "@a[gamemode=!spectator]"));
+		assertEquals(List.of(alice), PlayerSelector.trySelect(console, "@a[gamemode=!spectator,gamemode=!creative]"));
+	}
+
+	@Test
+	void filtersByWorld() {
+		assertEquals(List.of(carol), PlayerSelector.trySelect(console, "@a[world=world_nether]"));
+		assertEquals(List.of(carol), PlayerSelector.trySelect(console, "@a[world=WORLD_NETHER]"));
+		assertEquals(List.of(alice, bob), PlayerSelector.trySelect(console, "@a[world=!world_nether]"));
+	}
+
+	@Test
+	void selfIsOnlyThePlayerThatSentIt() {
+		assertEquals(List.of(alice), PlayerSelector.trySelect(alice, "@s"));
+		assertTrue(PlayerSelector.trySelect(console, "@s").isEmpty());
+	}
+
+	@Test
+	void leavesEverythingElseToVanilla() {
+		assertNull(PlayerSelector.trySelect(console, "@e"));
+		assertNull(PlayerSelector.trySelect(console, "@a[tag=builders]"));
+		assertNull(PlayerSelector.trySelect(console, "@a[limit=0]"));
+		assertNull(PlayerSelector.trySelect(console, "@a[limit=1,limit=2]"));
+		assertNull(PlayerSelector.trySelect(console, "@s[limit=1]"));
+		assertNull(PlayerSelector.trySelect(console, "@a[gamemode=hardcore]"));
+		assertNull(PlayerSelector.trySelect(console, "@a[distance=5..1]"));
+		assertNull(PlayerSelector.trySelect(console, "@a[limit=2"));
+		assertNull(PlayerSelector.trySelect(console, "@a[=2]"));
+		// Vanilla puts the console at the world spawn, which this doesn't know
+		assertNull(PlayerSelector.trySelect(console, "@p"));
+		assertNull(PlayerSelector.trySelect(console, "@a[distance=..10]"));
+	}
+
+	private static World world(String name) {
+		World world = Mockito.mock(World.class);
+		Mockito.when(world.getName()).thenReturn(name);
+		return world;
+	}
+
+	private static Player player(String name, World world, GameMode gameMode) {
+		Player player = Mockito.mock(Player.class);
+		Mockito.when(player.getName()).thenReturn(name);
+		Mockito.when(player.getWorld()).thenReturn(world);
+		Mockito.when(player.getGameMode()).thenReturn(gameMode);
+		return player;
+	}
+}